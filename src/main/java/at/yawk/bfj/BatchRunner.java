@@ -0,0 +1,120 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Runs one {@link Automaton} over many inputs on a pool of worker threads. Every input is run on its own
+ * {@link MemoryIO}, which each worker reuses for the inputs it runs. Results are passed on in the order of the inputs,
+ * and only a bounded number of inputs is taken ahead of the oldest unfinished one, so a slow consumer or a slow input
+ * holds back the input iterator instead of piling up results.
+ *
+ * @author yawkat
+ */
+@ThreadSafe
+public class BatchRunner implements Closeable {
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private final Automaton automaton;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ThreadLocal<MemoryIO> workerIo = ThreadLocal.withInitial(MemoryIO::new);
+
+    /**
+     * @param maxPending the maximum number of inputs that are queued or running at the same time.
+     */
+    public BatchRunner(Automaton automaton, int threads, int maxPending) {
+        if (threads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("threads and maxPending must be positive");
+        }
+        this.automaton = automaton;
+        this.maxPending = maxPending;
+        int pool = POOL_COUNTER.incrementAndGet();
+        AtomicInteger workerCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "bfj batch " + pool + " worker " + workerCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public BatchRunner(Automaton automaton, int threads) {
+        this(automaton, threads, threads * 4);
+    }
+
+    /**
+     * Run the automaton on every input and pass the outputs to the given consumer, in input order. Blocks until all
+     * inputs are done. If a run fails, the remaining inputs are skipped and the exception is rethrown here.
+     */
+    public void run(Iterator<byte[]> inputs, Consumer<byte[]> results) {
+        Deque<Future<byte[]>> pending = new ArrayDeque<>(maxPending);
+        try {
+            while (inputs.hasNext()) {
+                if (pending.size() >= maxPending) {
+                    results.accept(await(pending.remove()));
+                }
+                byte[] input = inputs.next();
+                pending.add(executor.submit(() -> runOne(input)));
+            }
+            while (!pending.isEmpty()) {
+                results.accept(await(pending.remove()));
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Run the automaton on every input and return the outputs, in input order.
+     */
+    public List<byte[]> run(List<byte[]> inputs) {
+        List<byte[]> results = new ArrayList<>(inputs.size());
+        run(inputs.iterator(), results::add);
+        return results;
+    }
+
+    private byte[] runOne(byte[] input) {
+        MemoryIO io = workerIo.get();
+        io.reset(input);
+        automaton.execute(io);
+        return io.toByteArray();
+    }
+
+    private static byte[] await(Future<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batch result", e);
+        } catch (ExecutionException e) {
+            throw Threads.rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Stop the worker threads. Runs that are in progress are completed first.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
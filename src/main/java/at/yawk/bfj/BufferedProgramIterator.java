@@ -6,8 +6,7 @@
 
 package at.yawk.bfj;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import javax.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 
@@ -16,7 +15,19 @@ import lombok.RequiredArgsConstructor;
  */
 @RequiredArgsConstructor
 public abstract class BufferedProgramIterator implements ProgramIterator {
-    private List<Instruction> backlog = new ArrayList<>();
+    private static final Instruction[] INSTRUCTIONS = Instruction.values();
+    /**
+     * Backlog capacity kept by {@link #release()}. Larger buffers are replaced so a single huge loop does not pin its
+     * memory for the rest of the program.
+     */
+    private static final int RETAINED_BACKLOG = 1 << 16;
+
+    /**
+     * Recorded instructions as {@link Instruction#ordinal()} values. Only the first {@link #backlogSize} entries are
+     * used.
+     */
+    private byte[] backlog = new byte[0];
+    private int backlogSize = 0;
     private int pos = 0;
     private boolean record = false;
     private boolean hitEnd = false;
@@ -27,7 +38,7 @@ public abstract class BufferedProgramIterator implements ProgramIterator {
     @Nullable
     @Override
     public Instruction next() {
-        if (!record || pos >= backlog.size()) {
+        if (!record || pos >= backlogSize) {
             if (hitEnd) {
                 return null;
             }
@@ -37,13 +48,16 @@ public abstract class BufferedProgramIterator implements ProgramIterator {
                 return null;
             }
             if (record) {
-                backlog.add(instruction);
+                if (backlogSize == backlog.length) {
+                    backlog = Arrays.copyOf(backlog, Math.max(64, backlogSize * 2));
+                }
+                backlog[backlogSize++] = (byte) instruction.ordinal();
                 pos++;
             } else {
             }
             return instruction;
         } else {
-            return backlog.get(pos++);
+            return INSTRUCTIONS[backlog[pos++]];
         }
     }
 
@@ -55,7 +69,7 @@ public abstract class BufferedProgramIterator implements ProgramIterator {
     @Override
     public void seek(int pos) {
         // == backlog.size is acceptable, we'll just continue in that case
-        if (pos < 0 || pos > backlog.size()) {
+        if (pos < 0 || pos > backlogSize) {
             throw new ParserException("Seek position out of range (did you call mark first?)");
         }
         this.pos = pos;
@@ -65,4 +79,18 @@ public abstract class BufferedProgramIterator implements ProgramIterator {
     public void mark() {
         record = true;
     }
+
+    @Override
+    public void release() {
+        // instructions after the current position were already retrieved and have to be kept
+        int remaining = backlogSize - pos;
+        if (backlog.length > RETAINED_BACKLOG && remaining <= RETAINED_BACKLOG) {
+            backlog = Arrays.copyOfRange(backlog, pos, pos + RETAINED_BACKLOG);
+        } else {
+            System.arraycopy(backlog, pos, backlog, 0, remaining);
+        }
+        backlogSize = remaining;
+        pos = 0;
+        record = remaining != 0;
+    }
 }
@@ -13,4 +13,28 @@ public interface IO {
     byte read();
 
     void write(byte value);
+
+    /**
+     * Fill the given range of the buffer with input, as if by calling {@link #read()} for each byte.
+     */
+    default void read(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] = read();
+        }
+    }
+
+    /**
+     * Write the given range of the buffer, as if by calling {@link #write(byte)} for each byte. Compiled programs
+     * collect their output and pass it to this method in chunks.
+     */
+    default void write(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            write(buffer[i]);
+        }
+    }
+
+    /**
+     * Pass any output this object buffers on to its destination.
+     */
+    default void flush() {}
 }
@@ -26,7 +26,7 @@ public enum Instruction {
     OUTPUT('.'),
     INPUT(',');
 
-    private static final Instruction[] INSTRUCTIONS = new Instruction[0xff];
+    private static final Instruction[] INSTRUCTIONS = new Instruction[0x100];
 
     static {
         for (Instruction instruction : values()) {
@@ -44,4 +44,14 @@ public enum Instruction {
             return INSTRUCTIONS[operator];
         }
     }
+
+    /**
+     * Look up the instruction for a byte of a program file in a single-byte charset or UTF-8, where every operator is
+     * a single byte.
+     *
+     * @return the instruction, or <code>null</code> if the byte is not an operator.
+     */
+    public static Instruction forByte(byte operator) {
+        return INSTRUCTIONS[operator & 0xff];
+    }
 }
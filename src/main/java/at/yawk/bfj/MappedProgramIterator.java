@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nullable;
+
+/**
+ * Parser for program files that maps the file into memory and classifies its bytes with a lookup table instead of
+ * decoding characters. Large files are mapped one window at a time.
+ *
+ * This only works for charsets that encode the operators as their ASCII bytes and never use these bytes as part of
+ * other characters, see {@link #supportsCharset(Charset)}.
+ *
+ * @author yawkat
+ */
+public class MappedProgramIterator extends BufferedProgramIterator implements Closeable {
+    private static final long WINDOW_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final long size;
+    /**
+     * Number of bytes of the file that were mapped so far.
+     */
+    private long mapped = 0;
+    private ByteBuffer window = ByteBuffer.allocate(0);
+
+    public MappedProgramIterator(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public static boolean supportsCharset(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) ||
+               charset.equals(StandardCharsets.US_ASCII) ||
+               charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = ByteBuffer.allocate(0);
+        mapped = size;
+        channel.close();
+    }
+
+    @Nullable
+    @Override
+    protected Instruction retrieveNext() {
+        try {
+            while (true) {
+                ByteBuffer window = this.window;
+                int position = window.position();
+                int limit = window.limit();
+                // skip comments without touching the buffer position
+                while (position < limit) {
+                    Instruction instruction = Instruction.forByte(window.get(position++));
+                    if (instruction != null) {
+                        window.position(position);
+                        return instruction;
+                    }
+                }
+                if (mapped >= size) {
+                    close();
+                    return null;
+                }
+                long length = Math.min(WINDOW_SIZE, size - mapped);
+                this.window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, length);
+                mapped += length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
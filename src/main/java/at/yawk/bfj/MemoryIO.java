@@ -0,0 +1,83 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * IO on byte arrays. Input is read from a given array and output is collected in a growable buffer. Reading past the
+ * end of the input fails like it does for the standard input. An instance can be {@link #reset(byte[]) reset} to run
+ * another program without allocating a new output buffer. Not thread-safe.
+ *
+ * @author yawkat
+ */
+public class MemoryIO implements IO {
+    private byte[] input;
+    private int inputPosition = 0;
+    private byte[] output = new byte[64];
+    private int outputLength = 0;
+
+    public MemoryIO(byte[] input) {
+        this.input = input;
+    }
+
+    public MemoryIO() {
+        this(new byte[0]);
+    }
+
+    /**
+     * Use the given input and discard all input and output so far.
+     */
+    public void reset(byte[] input) {
+        this.input = input;
+        this.inputPosition = 0;
+        this.outputLength = 0;
+    }
+
+    @Override
+    public byte read() {
+        if (inputPosition >= input.length) {
+            throw new UncheckedIOException(new EOFException());
+        }
+        return input[inputPosition++];
+    }
+
+    @Override
+    public void read(byte[] buffer, int offset, int length) {
+        if (length > input.length - inputPosition) {
+            throw new UncheckedIOException(new EOFException());
+        }
+        System.arraycopy(input, inputPosition, buffer, offset, length);
+        inputPosition += length;
+    }
+
+    @Override
+    public void write(byte value) {
+        if (outputLength == output.length) {
+            output = Arrays.copyOf(output, outputLength * 2);
+        }
+        output[outputLength++] = value;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        if (length > output.length - outputLength) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + length));
+        }
+        System.arraycopy(buffer, offset, output, outputLength, length);
+        outputLength += length;
+    }
+
+    /**
+     * Copy of the output written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(output, outputLength);
+    }
+}
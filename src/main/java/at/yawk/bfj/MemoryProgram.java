@@ -6,26 +6,72 @@
 
 package at.yawk.bfj;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
-import lombok.EqualsAndHashCode;
-import lombok.Getter;
 
 /**
+ * An immutable program held in memory. Instructions are packed into a byte array holding one
+ * {@link Instruction#ordinal()} per instruction.
+ *
  * @author yawkat
  */
 @ThreadSafe
-@EqualsAndHashCode(of = "instructions")
 public class MemoryProgram {
-    @Getter
-    private final List<Instruction> instructions;
+    private static final Instruction[] INSTRUCTIONS = Instruction.values();
+
+    /**
+     * Packed instructions. Only the first {@link #length} entries are used.
+     */
+    private final byte[] instructions;
+    private final int length;
     private Boolean valid = null;
+    private int hashCode = 0;
 
     public MemoryProgram(List<Instruction> instructions) {
-        this.instructions = Collections.unmodifiableList(new ArrayList<>(instructions));
+        this.instructions = new byte[instructions.size()];
+        for (int i = 0; i < this.instructions.length; i++) {
+            this.instructions[i] = (byte) instructions.get(i).ordinal();
+        }
+        this.length = this.instructions.length;
+    }
+
+    private MemoryProgram(byte[] instructions, int length) {
+        this.instructions = instructions;
+        this.length = length;
+    }
+
+    /**
+     * Read all remaining instructions of the given iterator.
+     */
+    public static MemoryProgram read(ProgramIterator iterator) {
+        Builder builder = new Builder();
+        Instruction instruction;
+        while ((instruction = iterator.next()) != null) {
+            builder.add(instruction);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public Instruction get(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(index + " >= " + length);
+        }
+        return INSTRUCTIONS[instructions[index]];
+    }
+
+    /**
+     * An unmodifiable view of the instructions of this program.
+     */
+    public List<Instruction> getInstructions() {
+        return new InstructionList();
     }
 
     public boolean isValid() {
@@ -38,8 +84,8 @@ public class MemoryProgram {
 
     private boolean validate() {
         int loopDepth = 0;
-        for (Instruction instruction : instructions) {
-            switch (instruction) {
+        for (int i = 0; i < length; i++) {
+            switch (INSTRUCTIONS[instructions[i]]) {
             case LOOP_START:
                 loopDepth++;
                 break;
@@ -55,11 +101,45 @@ public class MemoryProgram {
         return loopDepth == 0;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MemoryProgram)) {
+            return false;
+        }
+        MemoryProgram other = (MemoryProgram) o;
+        if (length != other.length || hashCode() != other.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (instructions[i] != other.instructions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = this.hashCode;
+        if (hashCode == 0) {
+            // like the other lazy fields, concurrent calls may compute this twice
+            hashCode = 1;
+            for (int i = 0; i < length; i++) {
+                hashCode = 31 * hashCode + instructions[i];
+            }
+            this.hashCode = hashCode;
+        }
+        return hashCode;
+    }
+
     @Override
     public String toString() {
-        char[] chars = new char[instructions.size()];
+        char[] chars = new char[length];
         for (int i = 0; i < chars.length; i++) {
-            chars[i] = instructions.get(i).getOperator();
+            chars[i] = INSTRUCTIONS[instructions[i]].getOperator();
         }
         return new String(chars);
     }
@@ -68,16 +148,56 @@ public class MemoryProgram {
         return new MemoryProgramIterator();
     }
 
+    /**
+     * Collects instructions into a packed buffer that is handed to the built program without copying.
+     */
+    public static class Builder {
+        private byte[] instructions = new byte[64];
+        private int length = 0;
+
+        public Builder add(Instruction instruction) {
+            if (length == instructions.length) {
+                instructions = Arrays.copyOf(instructions, length * 2);
+            }
+            instructions[length++] = (byte) instruction.ordinal();
+            return this;
+        }
+
+        /**
+         * Build the program. The builder cannot be used afterwards.
+         */
+        public MemoryProgram build() {
+            if (instructions == null) {
+                throw new IllegalStateException("Program was already built");
+            }
+            MemoryProgram program = new MemoryProgram(instructions, length);
+            instructions = null;
+            return program;
+        }
+    }
+
+    private class InstructionList extends AbstractList<Instruction> implements RandomAccess {
+        @Override
+        public Instruction get(int index) {
+            return MemoryProgram.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+    }
+
     private class MemoryProgramIterator implements ProgramIterator {
         int pos = 0;
 
         @Nullable
         @Override
         public Instruction next() {
-            if (pos >= instructions.size()) {
+            if (pos >= length) {
                 return null;
             }
-            return instructions.get(pos++);
+            return INSTRUCTIONS[instructions[pos++]];
         }
 
         @Override
@@ -0,0 +1,126 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Runs a chain of automatons concurrently, each on its own thread, like a shell pipeline. The output of every stage is
+ * the input of the next one and is passed on through a {@link RingBuffer}. The first stage reads the input IO and the
+ * last stage writes the output IO, so those can be the same object only if it supports reading and writing from
+ * different threads.
+ *
+ * When a stage ends, the next stage fails with an end-of-input exception once it has read everything, and the
+ * previous stage is stopped quietly the next time it waits to write. If a stage fails, the first failure is rethrown
+ * by {@link #run(IO, IO)} after all stages have ended.
+ *
+ * @author yawkat
+ */
+public class Pipeline {
+    private final List<Automaton> stages;
+    /**
+     * Size of the buffers between stages.
+     */
+    @Setter private int bufferSize = 1 << 16;
+
+    public Pipeline(List<Automaton> stages) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("Pipeline needs at least one stage");
+        }
+        this.stages = new ArrayList<>(stages);
+    }
+
+    public void run(IO input, IO output) {
+        int stageCount = stages.size();
+        RingBuffer[] buffers = new RingBuffer[stageCount - 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new RingBuffer(bufferSize);
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[stageCount];
+        for (int i = 0; i < stageCount; i++) {
+            Automaton automaton = stages.get(i);
+            RingBuffer in = i == 0 ? null : buffers[i - 1];
+            RingBuffer out = i == stageCount - 1 ? null : buffers[i];
+            StageIO io = new StageIO(in == null ? input : in, out == null ? output : out);
+            threads[i] = new Thread(() -> {
+                try {
+                    automaton.execute(io);
+                } catch (RingBuffer.ClosedException e) {
+                    // the next stage ended, so our output is not needed anymore
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    // output written before a failure is passed on as well
+                    try {
+                        io.flush();
+                    } catch (RingBuffer.ClosedException e) {
+                        // the next stage ended
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                    if (in != null) {
+                        in.closeRead();
+                    }
+                    if (out != null) {
+                        out.closeWrite();
+                    }
+                }
+            }, "bfj pipeline stage " + i);
+            threads[i].setDaemon(true);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Threads.joinAll(threads);
+        Throwable t = failure.get();
+        if (t != null) {
+            throw Threads.rethrow(t);
+        }
+    }
+
+    /**
+     * IO of a single stage. Output is flushed before the stage reads, so stages never wait for each other while
+     * holding unpublished output, and output to the terminal appears before the program waits for input.
+     */
+    @RequiredArgsConstructor
+    private static final class StageIO implements IO {
+        private final IO in;
+        private final IO out;
+
+        @Override
+        public byte read() {
+            out.flush();
+            return in.read();
+        }
+
+        @Override
+        public void read(byte[] buffer, int offset, int length) {
+            out.flush();
+            in.read(buffer, offset, length);
+        }
+
+        @Override
+        public void write(byte value) {
+            out.write(value);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+    }
+}
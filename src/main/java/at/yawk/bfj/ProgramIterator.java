@@ -45,4 +45,11 @@ public interface ProgramIterator {
      * </pre>
      */
     void mark();
+
+    /**
+     * Allow this iterator to drop the instructions before the current position that it kept for seeking. Positions
+     * returned before this call are no longer valid, and mark() has to be called again before seeking. Optional
+     * operation, the default implementation does nothing.
+     */
+    default void release() {}
 }
@@ -0,0 +1,234 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded byte queue between exactly one producer thread, which calls the write methods, and one consumer thread,
+ * which calls the read methods. There are no locks: each side only writes its own index and publishes it through a
+ * volatile field. Both sides batch their updates, so an index is only published once a quarter of the buffer has
+ * passed, when {@link #flush()} is called or before the thread waits for the other side. A waiting side spins for a
+ * short time and then parks until the other side publishes.
+ *
+ * @author yawkat
+ */
+final class RingBuffer implements IO {
+    private static final int SPINS = 64;
+
+    private final byte[] buffer;
+    private final int mask;
+    private final int publishThreshold;
+
+    /**
+     * Index after the last published byte. Only written by the producer.
+     */
+    private volatile long tail = 0;
+    private volatile boolean writeClosed = false;
+    /**
+     * Index of the first unconsumed byte as last published. Only written by the consumer.
+     */
+    private volatile long head = 0;
+    private volatile boolean readClosed = false;
+
+    @Nullable private volatile Thread waitingProducer = null;
+    @Nullable private volatile Thread waitingConsumer = null;
+
+    // fields of the producer thread
+    private long producerTail = 0;
+    private long producerPublished = 0;
+    private long producerHeadCache = 0;
+
+    // fields of the consumer thread
+    private long consumerHead = 0;
+    private long consumerPublished = 0;
+    private long consumerTailCache = 0;
+
+    /**
+     * @param capacity the buffer size, rounded up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.publishThreshold = size / 4;
+    }
+
+    @Override
+    public byte read() {
+        if (consumerHead == consumerTailCache) {
+            awaitData();
+        }
+        byte value = buffer[(int) consumerHead & mask];
+        consumerHead++;
+        if (consumerHead - consumerPublished >= publishThreshold) {
+            publishHead();
+        }
+        return value;
+    }
+
+    @Override
+    public void read(byte[] target, int offset, int length) {
+        while (length > 0) {
+            if (consumerHead == consumerTailCache) {
+                awaitData();
+            }
+            int index = (int) consumerHead & mask;
+            int n = (int) Math.min(Math.min(length, consumerTailCache - consumerHead), buffer.length - index);
+            System.arraycopy(buffer, index, target, offset, n);
+            consumerHead += n;
+            offset += n;
+            length -= n;
+            if (consumerHead - consumerPublished >= publishThreshold) {
+                publishHead();
+            }
+        }
+    }
+
+    @Override
+    public void write(byte value) {
+        if (producerTail - producerHeadCache == buffer.length) {
+            awaitSpace();
+        }
+        buffer[(int) producerTail & mask] = value;
+        producerTail++;
+        if (producerTail - producerPublished >= publishThreshold) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) {
+        while (length > 0) {
+            if (producerTail - producerHeadCache == buffer.length) {
+                awaitSpace();
+            }
+            int index = (int) producerTail & mask;
+            int free = (int) (buffer.length - (producerTail - producerHeadCache));
+            int n = Math.min(Math.min(length, free), buffer.length - index);
+            System.arraycopy(source, offset, buffer, index, n);
+            producerTail += n;
+            offset += n;
+            length -= n;
+            if (producerTail - producerPublished >= publishThreshold) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Publish the bytes written so far to the consumer. Must only be called by the producer.
+     */
+    @Override
+    public void flush() {
+        if (producerTail != producerPublished) {
+            producerPublished = producerTail;
+            tail = producerTail;
+            wake(waitingConsumer);
+        }
+    }
+
+    private void publishHead() {
+        consumerPublished = consumerHead;
+        head = consumerHead;
+        wake(waitingProducer);
+    }
+
+    /**
+     * Publish the bytes written so far and tell the consumer that no more bytes will follow. Called by the producer.
+     */
+    void closeWrite() {
+        flush();
+        writeClosed = true;
+        wake(waitingConsumer);
+    }
+
+    /**
+     * Tell the producer that no more bytes will be consumed. Called by the consumer.
+     */
+    void closeRead() {
+        readClosed = true;
+        wake(waitingProducer);
+    }
+
+    private void awaitData() {
+        consumerTailCache = tail;
+        if (consumerTailCache != consumerHead) {
+            return;
+        }
+        // the producer may be waiting for space we already consumed
+        publishHead();
+        // writeClosed is set after the final tail, so the tail has to be read again after seeing it
+        await(() -> tail != consumerHead || writeClosed, false);
+        consumerTailCache = tail;
+        if (consumerTailCache == consumerHead) {
+            throw new UncheckedIOException(new EOFException());
+        }
+    }
+
+    private void awaitSpace() {
+        if (readClosed) {
+            throw new ClosedException();
+        }
+        producerHeadCache = head;
+        if (producerTail - producerHeadCache != buffer.length) {
+            return;
+        }
+        // the consumer may be waiting for bytes we have not published yet
+        flush();
+        await(() -> producerTail - head != buffer.length || readClosed, true);
+        if (readClosed) {
+            throw new ClosedException();
+        }
+        producerHeadCache = head;
+    }
+
+    /**
+     * Wait until the given condition holds. The thread registers itself before checking the condition a last time
+     * before parking, and the other side wakes it after every publication, so no wake-up can be lost.
+     */
+    private void await(BooleanSupplier condition, boolean producer) {
+        for (int i = 0; !condition.getAsBoolean(); i++) {
+            if (i < SPINS) {
+                Thread.yield();
+                continue;
+            }
+            if (producer) {
+                waitingProducer = Thread.currentThread();
+            } else {
+                waitingConsumer = Thread.currentThread();
+            }
+            if (!condition.getAsBoolean()) {
+                LockSupport.park(this);
+            }
+            if (producer) {
+                waitingProducer = null;
+            } else {
+                waitingConsumer = null;
+            }
+        }
+    }
+
+    private static void wake(@Nullable Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Thrown to the producer when it writes to a buffer whose consumer has stopped reading.
+     */
+    static final class ClosedException extends RuntimeException {
+        ClosedException() {
+            super("Ring buffer consumer has stopped reading");
+        }
+    }
+}
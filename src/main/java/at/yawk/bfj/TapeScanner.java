@@ -0,0 +1,133 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import at.yawk.reflect.Unsafes;
+import java.nio.ByteOrder;
+import sun.misc.Unsafe;
+
+/**
+ * Runtime support for scan loops like <code>[&gt;]</code> or <code>[&lt;&lt;]</code>, shared by the interpreter and
+ * compiled code.
+ *
+ * For steps that divide 8, the tape is read a word at a time and all cells of the word that lie on the scan path are
+ * checked for zero with a single bit trick.
+ *
+ * @author yawkat
+ */
+public final class TapeScanner {
+    private static final Unsafe UNSAFE = Unsafes.getUnsafe();
+    private static final long BASE_OFFSET = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+    // word reads are only aligned if the array data starts on a word boundary
+    private static final boolean WORD_SCAN = BASE_OFFSET % 8 == 0;
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static final long LOW_SEVEN_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+    /**
+     * <code>LANES[step][r]</code> has the high bit set in every byte of a word whose memory offset is r modulo step.
+     */
+    private static final long[][] LANES = new long[9][];
+
+    static {
+        for (int step : new int[]{ 1, 2, 4, 8 }) {
+            LANES[step] = new long[step];
+            for (int offset = 0; offset < 8; offset++) {
+                int shift = LITTLE_ENDIAN ? offset * 8 : (7 - offset) * 8;
+                LANES[step][offset % step] |= 0x80L << shift;
+            }
+        }
+    }
+
+    private TapeScanner() {}
+
+    /**
+     * Find the first zero cell at <code>index + n * step</code> for <code>n &gt;= 0</code>.
+     *
+     * @param index the start position, must be within the tape.
+     * @return the position of the zero cell. Since cells outside the tape are zero, this may be out of bounds if no
+     * zero cell was found within the tape.
+     */
+    public static int scan(byte[] tape, int index, int step) {
+        if (step > 0) {
+            return scanRight(tape, index, step);
+        } else {
+            return scanLeft(tape, index, -step);
+        }
+    }
+
+    private static int scanRight(byte[] tape, int i, int step) {
+        if (WORD_SCAN && step <= 8 && 8 % step == 0) {
+            // check the cells of the first, partial word one by one
+            int firstWordEnd = (i | 7) + 1;
+            while (i < firstWordEnd) {
+                if (i >= tape.length || tape[i] == 0) {
+                    return i;
+                }
+                i += step;
+            }
+            long lanes = LANES[step][(i & 7) % step];
+            for (int word = i & ~7; word + 8 <= tape.length; word += 8) {
+                long zero = zeroBytes(UNSAFE.getLong(tape, BASE_OFFSET + word)) & lanes;
+                if (zero != 0) {
+                    return word + firstByte(zero);
+                }
+                i += 8;
+            }
+        }
+        while (i < tape.length && tape[i] != 0) {
+            i += step;
+        }
+        return i;
+    }
+
+    private static int scanLeft(byte[] tape, int i, int step) {
+        if (WORD_SCAN && step <= 8 && 8 % step == 0) {
+            // check the cells of the first, partial word one by one
+            int firstWordStart = i & ~7;
+            while (i >= firstWordStart) {
+                if (i < 0 || tape[i] == 0) {
+                    return i;
+                }
+                i -= step;
+            }
+            long lanes = LANES[step][(i & 7) % step];
+            for (int word = i & ~7; word >= 0; word -= 8) {
+                long zero = zeroBytes(UNSAFE.getLong(tape, BASE_OFFSET + word)) & lanes;
+                if (zero != 0) {
+                    return word + lastByte(zero);
+                }
+                i -= 8;
+            }
+        }
+        while (i >= 0 && tape[i] != 0) {
+            i -= step;
+        }
+        return i;
+    }
+
+    /**
+     * Returns a word with the high bit set in exactly those bytes that are zero in the given word.
+     */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+    }
+
+    /**
+     * Memory offset of the first byte marked in the given non-zero result of {@link #zeroBytes(long)}.
+     */
+    private static int firstByte(long zero) {
+        return (LITTLE_ENDIAN ? Long.numberOfTrailingZeros(zero) : Long.numberOfLeadingZeros(zero)) >>> 3;
+    }
+
+    /**
+     * Memory offset of the last byte marked in the given non-zero result of {@link #zeroBytes(long)}.
+     */
+    private static int lastByte(long zero) {
+        return 7 - ((LITTLE_ENDIAN ? Long.numberOfLeadingZeros(zero) : Long.numberOfTrailingZeros(zero)) >>> 3);
+    }
+}
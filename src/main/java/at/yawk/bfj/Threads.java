@@ -0,0 +1,53 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+/**
+ * Helpers for waiting on worker threads and passing their failures on to the waiting thread.
+ *
+ * @author yawkat
+ */
+final class Threads {
+    private Threads() {}
+
+    /**
+     * Wait for all given threads to end. Interrupts do not stop the wait, but the interrupt status is restored
+     * afterwards.
+     */
+    static void joinAll(Thread... threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rethrow a failure of another thread on this thread. Unchecked exceptions and errors are thrown as they are,
+     * anything else is wrapped.
+     *
+     * @return never returns normally, the return type only allows callers to write <code>throw rethrow(t)</code>.
+     */
+    static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
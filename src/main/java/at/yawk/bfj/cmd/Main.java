@@ -7,16 +7,24 @@
 package at.yawk.bfj.cmd;
 
 import at.yawk.bfj.*;
+import at.yawk.bfj.compile.ClosureEngine;
 import at.yawk.bfj.compile.CompiledEngine;
+import at.yawk.bfj.compile.TieredEngine;
 import at.yawk.bfj.interpret.InterpretedEngine;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import joptsimple.*;
 
@@ -30,6 +38,8 @@ public class Main {
     static {
         ENGINES.put("interpreted", new InterpretedEngine());
         ENGINES.put("compiled", new CompiledEngine());
+        ENGINES.put("closure", new ClosureEngine());
+        ENGINES.put("tiered", new TieredEngine());
     }
 
     private Main() {}
@@ -61,13 +71,74 @@ public class Main {
                 })
                 .defaultsTo(DEFAULT_ENGINE);
         OptionSpec<Void> disableAutoFlushOption = parser.accepts("disable-auto-flush");
+        OptionSpec<SystemIO.FlushPolicy> flushPolicyOption = parser.accepts("flush")
+                .withRequiredArg()
+                .withValuesConvertedBy(new ValueConverter<SystemIO.FlushPolicy>() {
+                    @Override
+                    public SystemIO.FlushPolicy convert(String value) {
+                        try {
+                            return SystemIO.FlushPolicy.valueOf(value.toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            throw new ValueConversionException("Unknown flush policy " + value, e);
+                        }
+                    }
+
+                    @Override
+                    public Class<? extends SystemIO.FlushPolicy> valueType() {
+                        return SystemIO.FlushPolicy.class;
+                    }
+
+                    @Override
+                    public String valuePattern() {
+                        return "always,line,interval,never";
+                    }
+                })
+                .defaultsTo(SystemIO.FlushPolicy.LINE);
+        OptionSpec<Integer> flushIntervalOption = parser.accepts("flush-interval")
+                .withRequiredArg()
+                .ofType(int.class)
+                .defaultsTo(100);
         OptionSpec<Void> verboseOption = parser.accepts("v");
         OptionSpec<Void> detectInfiniteLoopsOption = parser.accepts("detect-infinite-loops");
         OptionSpec<Void> optimizeOption = parser.accepts("optimize");
+        OptionSpec<Void> streamOption = parser.accepts("stream");
+        OptionSpec<Integer> parseThreadsOption = parser.accepts("parse-threads")
+                .withRequiredArg()
+                .ofType(int.class);
         OptionSpec<Integer> iterationCountOption = parser.accepts("i")
                 .withRequiredArg()
                 .ofType(int.class)
                 .defaultsTo(1);
+        OptionSpec<RecordFormat> batchOption = parser.accepts("batch")
+                .withRequiredArg()
+                .withValuesConvertedBy(new ValueConverter<RecordFormat>() {
+                    @Override
+                    public RecordFormat convert(String value) {
+                        try {
+                            return RecordFormat.valueOf(value.toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            throw new ValueConversionException("Unknown record format " + value, e);
+                        }
+                    }
+
+                    @Override
+                    public Class<? extends RecordFormat> valueType() {
+                        return RecordFormat.class;
+                    }
+
+                    @Override
+                    public String valuePattern() {
+                        return "newline,length";
+                    }
+                });
+        OptionSpec<Integer> batchThreadsOption = parser.accepts("batch-threads")
+                .withRequiredArg()
+                .ofType(int.class)
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<Void> pipelineOption = parser.accepts("pipeline");
+        OptionSpec<Path> cacheDirectoryOption = parser.accepts("cache-dir")
+                .withRequiredArg()
+                .withValuesConvertedBy(new PathValueConverter());
         OptionSpec<Path> sourceOption = parser.nonOptions().withValuesConvertedBy(new PathValueConverter());
 
         OptionSet parsed;
@@ -82,9 +153,15 @@ public class Main {
         Engine engine = engineOption.value(parsed);
         Charset charset = charsetOption.value(parsed);
         List<Path> sources = sourceOption.values(parsed);
-        boolean autoFlush = !parsed.has(disableAutoFlushOption);
+        SystemIO.FlushPolicy flushPolicy = parsed.has(disableAutoFlushOption) ?
+                SystemIO.FlushPolicy.NEVER : flushPolicyOption.value(parsed);
         int iterationCount = iterationCountOption.value(parsed);
         boolean optimizeOnly = parsed.has(optimizeOption);
+        boolean stream = parsed.has(streamOption);
+        if (stream && iterationCount != 1) {
+            System.err.println("Streamed programs can only be run once");
+            return;
+        }
 
         if (parsed.has(verboseOption)) {
             ((InterpretedEngine) engine).setPrintProgress(true);
@@ -93,9 +170,61 @@ public class Main {
             ((InterpretedEngine) engine).setDetectInfiniteLoops(true);
         }
 
-        IO io = new SystemIO(autoFlush);
+        if (parsed.has(cacheDirectoryOption)) {
+            // the tiered engine only compiles single loops, which are not cached
+            if (!(engine instanceof CompiledEngine)) {
+                System.err.println("The class cache is only supported by the compiled engine");
+                return;
+            }
+            ((CompiledEngine) engine).setCacheDirectory(cacheDirectoryOption.value(parsed));
+        }
+
+        IO io = new SystemIO(flushPolicy, flushIntervalOption.value(parsed), TimeUnit.MILLISECONDS);
+        Consumer<Automaton> execution;
+        List<Automaton> pipelineStages = new ArrayList<>();
+        if (parsed.has(pipelineOption)) {
+            if (stream || parsed.has(batchOption) || iterationCount != 1) {
+                System.err.println("Pipelines cannot be combined with streaming, batch mode or repeated runs");
+                return;
+            }
+            execution = pipelineStages::add;
+        } else if (parsed.has(batchOption)) {
+            if (sources.contains(null)) {
+                System.err.println("Batch input is read from stdin, so programs cannot be read from there");
+                return;
+            }
+            if (stream) {
+                System.err.println("Streamed programs cannot be run in batch mode");
+                return;
+            }
+            RecordFormat format = batchOption.value(parsed);
+            int threads = batchThreadsOption.value(parsed);
+            execution = automaton -> runBatch(automaton, format, threads);
+        } else {
+            execution = automaton -> execute(automaton, io, iterationCount);
+        }
+
+        ForkJoinPool parsePool = null;
+        if (parsed.has(parseThreadsOption)) {
+            if (!(engine instanceof InterpretedEngine)) {
+                System.err.println("Parallel parsing is only supported by the interpreted engine");
+                return;
+            }
+            parsePool = new ForkJoinPool(parseThreadsOption.value(parsed));
+        }
 
         for (Path path : sources) {
+            if (path != null && parsePool != null && !optimizeOnly && !stream &&
+                MappedProgramIterator.supportsCharset(charset)) {
+                execution.accept(((InterpretedEngine) engine).produceParallel(path, parsePool));
+                continue;
+            }
+            if (path != null && MappedProgramIterator.supportsCharset(charset)) {
+                try (MappedProgramIterator iterator = new MappedProgramIterator(path)) {
+                    run(engine, iterator, io, optimizeOnly, stream, execution);
+                }
+                continue;
+            }
             Supplier<InputStream> in;
             if (path != null) {
                 in = () -> {
@@ -120,21 +249,88 @@ public class Main {
                 };
             }
             try (Reader reader = new InputStreamReader(in.get(), charset)) {
-                BufferedProgramIterator iterator = new ReaderProgramIterator(reader);
+                run(engine, new ReaderProgramIterator(reader), io, optimizeOnly, stream, execution);
+            }
+        }
 
-                if (optimizeOnly) {
-                    @SuppressWarnings("ConstantConditions")
-                    MemoryProgram optimized = ((CompiledEngine) engine).optimize(iterator);
-                    for (Instruction instruction : optimized.getInstructions()) {
-                        System.out.print(instruction.getOperator());
-                    }
-                    System.out.println();
-                } else {
-                    Automaton automaton = engine.produce(iterator);
-                    for (int i = 0; i < iterationCount; i++) {
-                        automaton.execute(io);
+        if (!pipelineStages.isEmpty()) {
+            // the first stage reads and the last stage writes on different threads, so they need separate IO objects
+            IO input = new SystemIO(flushPolicy, flushIntervalOption.value(parsed), TimeUnit.MILLISECONDS);
+            try {
+                new Pipeline(pipelineStages).run(input, io);
+            } finally {
+                // the last stage may have written output before a stage failed
+                io.flush();
+            }
+        }
+    }
+
+    private static void run(Engine engine, BufferedProgramIterator iterator, IO io, boolean optimizeOnly,
+                            boolean stream, Consumer<Automaton> execution) {
+        if (optimizeOnly) {
+            @SuppressWarnings("ConstantConditions")
+            MemoryProgram optimized = ((CompiledEngine) engine).optimize(iterator);
+            System.out.println(optimized);
+        } else if (stream) {
+            ((InterpretedEngine) engine).stream(iterator, io);
+            io.flush();
+        } else {
+            execution.accept(engine.produce(iterator));
+        }
+    }
+
+    private static void execute(Automaton automaton, IO io, int iterationCount) {
+        for (int i = 0; i < iterationCount; i++) {
+            automaton.execute(io);
+        }
+        io.flush();
+    }
+
+    /**
+     * Run the automaton once for every record on stdin and write the outputs to stdout in the same order.
+     */
+    private static void runBatch(Automaton automaton, RecordFormat format, int threads) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        Iterator<byte[]> records = new Iterator<byte[]>() {
+            byte[] next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = format.read(in);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
                 }
+                return next != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] record = next;
+                next = null;
+                return record;
+            }
+        };
+        try (BatchRunner runner = new BatchRunner(automaton, threads)) {
+            runner.run(records, output -> {
+                try {
+                    format.write(out, output);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } finally {
+            // keep the outputs of the records before a failed one
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
     }
@@ -0,0 +1,86 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.cmd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * How batch input records are separated and how the outputs for them are written.
+ *
+ * @author yawkat
+ */
+enum RecordFormat {
+    /**
+     * Records are lines. The input includes the line separator so programs can detect the end of the record, and
+     * outputs are written as they are.
+     */
+    NEWLINE {
+        @Nullable
+        @Override
+        byte[] read(DataInputStream in) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            int b;
+            do {
+                b = in.read();
+                if (b == -1) {
+                    if (record.size() == 0) {
+                        return null;
+                    }
+                    // a last line without separator is still a record
+                    b = '\n';
+                }
+                record.write(b);
+            } while (b != '\n');
+            return record.toByteArray();
+        }
+
+        @Override
+        void write(DataOutputStream out, byte[] output) throws IOException {
+            out.write(output);
+        }
+    },
+    /**
+     * Every record and every output is preceded by its length as a 32-bit big-endian integer.
+     */
+    LENGTH {
+        @Nullable
+        @Override
+        byte[] read(DataInputStream in) throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid record length " + (length & 0xffffffffL));
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return record;
+        }
+
+        @Override
+        void write(DataOutputStream out, byte[] output) throws IOException {
+            out.writeInt(output.length);
+            out.write(output);
+        }
+    };
+
+    /**
+     * @return the next record or <code>null</code> if there are no more records.
+     */
+    @Nullable
+    abstract byte[] read(DataInputStream in) throws IOException;
+
+    abstract void write(DataOutputStream out, byte[] output) throws IOException;
+}
@@ -8,25 +8,81 @@ package at.yawk.bfj.cmd;
 
 import at.yawk.bfj.IO;
 import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import lombok.RequiredArgsConstructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * IO on the standard input and output of the process. Both directions go through a {@link FileChannel} with a reusable
+ * buffer, and output is written to the channel as the {@link FlushPolicy} says. Pending output is always written
+ * before input is read, so prompts are visible. Not thread-safe.
+ *
  * @author yawkat
  */
-@RequiredArgsConstructor
 public class SystemIO implements IO {
-    private final boolean autoFlush;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel in = new FileInputStream(FileDescriptor.in).getChannel();
+    private final FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+    private final ByteBuffer inBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer outBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final FlushPolicy flushPolicy;
+    private final long flushIntervalNanos;
+    private long lastFlush = System.nanoTime();
+
+    /**
+     * @param flushInterval the minimum time between flushes for {@link FlushPolicy#INTERVAL}, ignored otherwise.
+     */
+    public SystemIO(FlushPolicy flushPolicy, long flushInterval, TimeUnit unit) {
+        this.flushPolicy = flushPolicy;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        // start out with no input
+        inBuffer.limit(0);
+    }
+
+    public SystemIO(FlushPolicy flushPolicy) {
+        this(flushPolicy, 100, TimeUnit.MILLISECONDS);
+    }
 
     @Override
     public byte read() {
+        if (!inBuffer.hasRemaining()) {
+            fill();
+        }
+        return inBuffer.get();
+    }
+
+    @Override
+    public void read(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            if (!inBuffer.hasRemaining()) {
+                fill();
+            }
+            int n = Math.min(length, inBuffer.remaining());
+            inBuffer.get(buffer, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void fill() {
+        flush();
         try {
-            int i = System.in.read();
-            if (i == -1) {
+            inBuffer.clear();
+            int n;
+            do {
+                n = in.read(inBuffer);
+            } while (n == 0);
+            inBuffer.flip();
+            if (n == -1) {
                 throw new EOFException();
             }
-            return (byte) i;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -34,9 +90,99 @@ public class SystemIO implements IO {
 
     @Override
     public void write(byte value) {
-        System.out.write(value);
-        if (autoFlush) {
-            System.out.flush();
+        if (!outBuffer.hasRemaining()) {
+            drain();
+        }
+        outBuffer.put(value);
+        if (flushPolicy.shouldFlush(this, value == '\n')) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        boolean newline = false;
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] == '\n') {
+                newline = true;
+                break;
+            }
         }
+        while (length > 0) {
+            if (!outBuffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(length, outBuffer.remaining());
+            outBuffer.put(buffer, offset, n);
+            offset += n;
+            length -= n;
+        }
+        if (flushPolicy.shouldFlush(this, newline)) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        lastFlush = System.nanoTime();
+    }
+
+    private void drain() {
+        outBuffer.flip();
+        try {
+            while (outBuffer.hasRemaining()) {
+                out.write(outBuffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            outBuffer.clear();
+        }
+    }
+
+    /**
+     * When buffered output is written after a write call. Output is also written when the buffer is full, before input
+     * is read and on {@link #flush()}.
+     */
+    public enum FlushPolicy {
+        /**
+         * After every write call.
+         */
+        ALWAYS {
+            @Override
+            boolean shouldFlush(SystemIO io, boolean newline) {
+                return true;
+            }
+        },
+        /**
+         * After writes that contain a newline.
+         */
+        LINE {
+            @Override
+            boolean shouldFlush(SystemIO io, boolean newline) {
+                return newline;
+            }
+        },
+        /**
+         * After writes once the flush interval has passed since the last flush.
+         */
+        INTERVAL {
+            @Override
+            boolean shouldFlush(SystemIO io, boolean newline) {
+                return System.nanoTime() - io.lastFlush >= io.flushIntervalNanos;
+            }
+        },
+        /**
+         * Never after a write call.
+         */
+        NEVER {
+            @Override
+            boolean shouldFlush(SystemIO io, boolean newline) {
+                return false;
+            }
+        };
+
+        abstract boolean shouldFlush(SystemIO io, boolean newline);
     }
 }
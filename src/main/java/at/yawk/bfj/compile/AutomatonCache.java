@@ -0,0 +1,87 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.Automaton;
+import at.yawk.bfj.MemoryProgram;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.annotation.concurrent.ThreadSafe;
+import lombok.Getter;
+import lombok.Value;
+
+/**
+ * Least-recently-used cache of instantiated automatons. Automatons are thread-safe so a cached instance can be
+ * returned to any number of callers. Evicted automatons are not referenced anymore, so their classes can be unloaded
+ * once no caller uses them.
+ *
+ * @author yawkat
+ */
+@ThreadSafe
+final class AutomatonCache {
+    private final Map<Key, Automaton> entries = new LinkedHashMap<Key, Automaton>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Automaton> eldest) {
+            if (size() > maximumSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private int maximumSize;
+
+    @Getter private volatile long hits = 0;
+    @Getter private volatile long misses = 0;
+    @Getter private volatile long evictions = 0;
+
+    AutomatonCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Get the automaton for the given program, producing it with the given supplier if it is not cached. The
+     * supplier is called without holding the cache lock, so the same program may be produced more than once if it
+     * is requested concurrently.
+     *
+     * @param settings description of all settings that influence the produced automaton
+     */
+    Automaton get(MemoryProgram program, String settings, Supplier<Automaton> producer) {
+        Key key = new Key(program, settings);
+        synchronized (this) {
+            Automaton automaton = entries.get(key);
+            if (automaton != null) {
+                hits++;
+                return automaton;
+            }
+            misses++;
+        }
+        Automaton automaton = producer.get();
+        synchronized (this) {
+            if (maximumSize > 0) {
+                entries.put(key, automaton);
+            }
+        }
+        return automaton;
+    }
+
+    synchronized void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        while (entries.size() > maximumSize) {
+            entries.remove(entries.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    @Value
+    private static class Key {
+        private final MemoryProgram program;
+        private final String settings;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.MemoryProgram;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.annotation.Nullable;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Content-addressed directory of compiled class files. Entries are written to a temporary file first and then moved
+ * into place, so multiple processes can share a directory without seeing partially written entries.
+ *
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+final class ClassCache {
+    /**
+     * Part of every key, increment when the generated code changes so old entries are not used anymore.
+     */
+    private static final int FORMAT_VERSION = 3;
+
+    private final Path directory;
+
+    /**
+     * Compute the cache key of the given program.
+     *
+     * @param settings description of all settings that influence the generated code
+     */
+    static String key(MemoryProgram program, String settings) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        digest.update((FORMAT_VERSION + "\n" + settings + "\n").getBytes(StandardCharsets.UTF_8));
+        byte[] chunk = new byte[4096];
+        for (int start = 0; start < program.size(); start += chunk.length) {
+            int length = Math.min(chunk.length, program.size() - start);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = (byte) program.get(start + i).getOperator();
+            }
+            digest.update(chunk, 0, length);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached class file or <code>null</code> if there is no entry for the given key.
+     */
+    @Nullable
+    byte[] get(String key) throws IOException {
+        try {
+            return Files.readAllBytes(file(key));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    void put(String key, byte[] bytes) throws IOException {
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            try {
+                Files.move(tmp, file(key), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + ".class");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.reflect.UncheckedReflectiveOperationException;
+import at.yawk.reflect.Unsafes;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import javax.annotation.Nullable;
+
+/**
+ * Defines generated classes so that they are not registered with any class loader and can be unloaded as soon as
+ * they are unreachable. Uses hidden classes (<code>Lookup.defineHiddenClass</code>) where available and falls back to
+ * <code>Unsafe.defineAnonymousClass</code> on older JVMs.
+ *
+ * Generated classes have to be in the package of this class.
+ *
+ * @author yawkat
+ */
+final class ClassDefiner {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * <code>Lookup.defineHiddenClass(byte[], boolean, ClassOption...)</code>, or <code>null</code> if this JVM
+     * does not support hidden classes.
+     */
+    @Nullable private static final Method DEFINE_HIDDEN_CLASS;
+    @Nullable private static final Object NO_CLASS_OPTIONS;
+
+    static {
+        Method defineHiddenClass;
+        Object noClassOptions;
+        try {
+            Class<?> classOption = Class.forName(MethodHandles.Lookup.class.getName() + "$ClassOption");
+            noClassOptions = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+                    "defineHiddenClass", byte[].class, boolean.class, noClassOptions.getClass());
+        } catch (ReflectiveOperationException e) {
+            defineHiddenClass = null;
+            noClassOptions = null;
+        }
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_CLASS_OPTIONS = noClassOptions;
+    }
+
+    private ClassDefiner() {}
+
+    /**
+     * Define the given class file and create an instance using its public no-argument constructor.
+     */
+    static Object instantiate(byte[] bytes) {
+        try {
+            return define(bytes).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new UncheckedReflectiveOperationException(e);
+        }
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        if (DEFINE_HIDDEN_CLASS != null) {
+            try {
+                return ((MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(LOOKUP, bytes, false, NO_CLASS_OPTIONS))
+                        .lookupClass();
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        } else {
+            return Unsafes.getUnsafe().defineAnonymousClass(ClassDefiner.class, bytes, null);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.Automaton;
+import at.yawk.bfj.IO;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+final class ClosureAutomaton implements Automaton {
+    private final ClosureNode root;
+    private final int initialBufferSize;
+
+    @Override
+    public void execute(IO io) {
+        Frame frame = new Frame(io, initialBufferSize);
+        ClosureNode.run(root, frame);
+        frame.flushOutput();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.Automaton;
+import at.yawk.bfj.Engine;
+import at.yawk.bfj.ProgramIterator;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Engine that turns the optimized expression tree into a tree of pre-bound {@link ClosureNode}s. This avoids the
+ * bytecode generation and class definition cost of {@link CompiledEngine} while still letting the JIT inline the
+ * whole program.
+ *
+ * @author yawkat
+ */
+public class ClosureEngine implements Engine {
+    @Getter private final Optimizer optimizer = new Optimizer();
+    @Setter private int initialBufferSize = 1024;
+
+    @Override
+    public Automaton produce(ProgramIterator iterator) {
+        Expression expression = new ExpressionCompiler(iterator, optimizer).compile();
+        ClosureNode root = expression.toClosure((loop, body) -> new ClosureNode.Loop(body));
+        return new ClosureAutomaton(root, initialBufferSize);
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.TapeScanner;
+import java.util.Arrays;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Pre-bound executable form of an {@link Expression}. All operands are final fields and every node class is final so
+ * the JIT can inline a node tree much like it would inline generated bytecode.
+ *
+ * @author yawkat
+ */
+abstract class ClosureNode {
+    /**
+     * Loop depth up to which nodes run their children recursively. {@link #run(ClosureNode, Frame)} walks the levels
+     * above with an explicit stack, so trees of any depth fit on the thread stack.
+     */
+    static final int MAX_RECURSION_DEPTH = 128;
+
+    /**
+     * Run this node and its children recursively. Only safe for nodes up to {@link #MAX_RECURSION_DEPTH}, use
+     * {@link #run(ClosureNode, Frame)} for nodes of unknown depth.
+     */
+    abstract void execute(Frame frame);
+
+    /**
+     * Number of loops nested in each other at the deepest point of this node.
+     */
+    int depth() {
+        return 0;
+    }
+
+    /**
+     * Run the given node tree. Sequences and loops nested deeper than {@link #MAX_RECURSION_DEPTH} are run with an
+     * explicit stack, the shallower nodes below them recursively.
+     */
+    static void run(ClosureNode root, Frame frame) {
+        // the sequences and loops that are running, innermost last. positions holds the next child index of a
+        // sequence, or whether a loop has run its body before.
+        ClosureNode[] nodes = new ClosureNode[16];
+        int[] positions = new int[16];
+        int size = 0;
+        ClosureNode next = root;
+        while (true) {
+            if (next != null) {
+                if (next.depth() <= MAX_RECURSION_DEPTH) {
+                    next.execute(frame);
+                } else {
+                    if (size == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, size * 2);
+                        positions = Arrays.copyOf(positions, size * 2);
+                    }
+                    nodes[size] = next;
+                    positions[size] = 0;
+                    size++;
+                }
+                next = null;
+            }
+            if (size == 0) {
+                return;
+            }
+            ClosureNode node = nodes[size - 1];
+            if (node instanceof Sequence) {
+                ClosureNode[] children = ((Sequence) node).nodes;
+                int position = positions[size - 1]++;
+                if (position < children.length) {
+                    next = children[position];
+                } else {
+                    size--;
+                }
+            } else {
+                LoopNode loop = (LoopNode) node;
+                if (positions[size - 1] != 0) {
+                    loop.backEdge();
+                }
+                positions[size - 1] = 1;
+                if (loop.header(frame)) {
+                    next = loop.body;
+                } else {
+                    size--;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface LoopFactory {
+        /**
+         * Create the node for the given loop expression.
+         *
+         * @param body the node for the loop body
+         */
+        ClosureNode create(Expression.Loop loop, ClosureNode body);
+    }
+
+    static final class Sequence extends ClosureNode {
+        private final ClosureNode[] nodes;
+        private final int depth;
+
+        Sequence(ClosureNode[] nodes) {
+            this.nodes = nodes;
+            int depth = 0;
+            for (ClosureNode node : nodes) {
+                depth = Math.max(depth, node.depth());
+            }
+            this.depth = depth;
+        }
+
+        @Override
+        int depth() {
+            return depth;
+        }
+
+        @Override
+        void execute(Frame frame) {
+            for (ClosureNode node : nodes) {
+                node.execute(frame);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Increment extends ClosureNode {
+        private final int delta;
+        private final int offset;
+
+        @Override
+        void execute(Frame frame) {
+            frame.tape[frame.index + offset] += delta;
+        }
+    }
+
+    /**
+     * A straight-line run of increments and moves executed without a virtual call per operation. Each entry of
+     * <code>operations</code> is a delta shifted left by one, with the lowest bit set for moves. Increments apply to
+     * the cell at the matching entry of <code>offsets</code>.
+     */
+    @RequiredArgsConstructor
+    static final class Block extends ClosureNode {
+        private final int[] operations;
+        private final int[] offsets;
+
+        @Override
+        void execute(Frame frame) {
+            for (int i = 0; i < operations.length; i++) {
+                int operation = operations[i];
+                if ((operation & 1) != 0) {
+                    frame.index += operation >> 1;
+                } else {
+                    frame.tape[frame.index + offsets[i]] += operation >> 1;
+                }
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Move extends ClosureNode {
+        private final int delta;
+
+        @Override
+        void execute(Frame frame) {
+            frame.index += delta;
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Ensure extends ClosureNode {
+        private final int low;
+        private final int high;
+
+        @Override
+        void execute(Frame frame) {
+            frame.ensure(low, high);
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Set extends ClosureNode {
+        private final byte value;
+        private final int offset;
+
+        @Override
+        void execute(Frame frame) {
+            frame.tape[frame.index + offset] = value;
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class MultiplyAdd extends ClosureNode {
+        private final int offset;
+        private final int[] offsets;
+        private final byte[] factors;
+
+        @Override
+        void execute(Frame frame) {
+            int source = frame.index + offset;
+            byte value = frame.tape[source];
+            if (value == 0) {
+                return;
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                frame.tape[source + offsets[i]] += value * factors[i];
+            }
+            frame.tape[source] = 0;
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Scan extends ClosureNode {
+        private final int step;
+
+        @Override
+        void execute(Frame frame) {
+            frame.index = TapeScanner.scan(frame.tape, frame.index, step);
+            // grow the tape if we ran past its end
+            frame.move(0);
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Precomputed extends ClosureNode {
+        private final int offset;
+        private final byte[] image;
+        private final byte[] output;
+        private final int delta;
+
+        @Override
+        void execute(Frame frame) {
+            System.arraycopy(image, 0, frame.tape, frame.index + offset, image.length);
+            frame.write(output, 0, output.length);
+            frame.index += delta;
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Print extends ClosureNode {
+        private final byte[] data;
+
+        @Override
+        void execute(Frame frame) {
+            frame.write(data, 0, data.length);
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Out extends ClosureNode {
+        private final int offset;
+
+        @Override
+        void execute(Frame frame) {
+            frame.write(frame.tape[frame.index + offset]);
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class In extends ClosureNode {
+        private final int offset;
+
+        @Override
+        void execute(Frame frame) {
+            frame.tape[frame.index + offset] = frame.read();
+        }
+    }
+
+    /**
+     * Base class of loops, split into the steps {@link #run(ClosureNode, Frame)} needs to run them without recursion.
+     */
+    abstract static class LoopNode extends ClosureNode {
+        final ClosureNode body;
+        private final int depth;
+
+        LoopNode(ClosureNode body) {
+            this.body = body;
+            this.depth = body.depth() + 1;
+        }
+
+        @Override
+        int depth() {
+            return depth;
+        }
+
+        /**
+         * Run the loop header.
+         *
+         * @return whether the body should run next.
+         */
+        abstract boolean header(Frame frame);
+
+        /**
+         * Called after every run of the body.
+         */
+        void backEdge() {}
+
+        @Override
+        void execute(Frame frame) {
+            while (header(frame)) {
+                body.execute(frame);
+                backEdge();
+            }
+        }
+    }
+
+    static final class Loop extends LoopNode {
+        Loop(ClosureNode body) {
+            super(body);
+        }
+
+        @Override
+        boolean header(Frame frame) {
+            return frame.tape[frame.index] != 0;
+        }
+
+        @Override
+        void execute(Frame frame) {
+            while (frame.tape[frame.index] != 0) {
+                body.execute(frame);
+            }
+        }
+    }
+}
@@ -7,14 +7,25 @@
 package at.yawk.bfj.compile;
 
 import at.yawk.bfj.*;
-import at.yawk.reflect.UncheckedReflectiveOperationException;
-import at.yawk.reflect.Unsafes;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.stream.Collectors;
-import javassist.*;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
 import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
 import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
 import javassist.bytecode.Opcode;
+import javax.annotation.Nullable;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -22,25 +33,83 @@ import lombok.Setter;
  * @author yawkat
  */
 public class CompiledEngine implements Engine {
+    private static final AtomicInteger classCounter = new AtomicInteger();
+    /**
+     * Class pool used to resolve the types referenced by generated code when computing stack map frames. Generated
+     * classes are never added to it.
+     */
+    private static final ClassPool STACK_MAP_POOL = new ClassPool(true);
+
+    static {
+        STACK_MAP_POOL.appendClassPath(new ClassClassPath(CompiledEngine.class));
+    }
+
     @Getter private final Optimizer optimizer = new Optimizer();
     @Setter private int initialBufferSize = 1024;
+    /**
+     * Approximate maximum bytecode size of a generated method. Larger code is split into multiple methods, see
+     * {@link MethodOutliner}. HotSpot does not compile methods above 8000 bytes by default.
+     */
+    @Setter private int maxMethodSize = 4000;
+    /**
+     * Directory in which compiled classes are cached across processes, or <code>null</code> to disable caching.
+     */
+    @Setter @Nullable private Path cacheDirectory = null;
+    private final AutomatonCache automatonCache = new AutomatonCache(64);
 
     public MemoryProgram optimize(ProgramIterator iterator) {
         Expression expression = new ExpressionCompiler(iterator, optimizer).compile();
-        return new MemoryProgram(expression.toInstructions().collect(Collectors.toList()));
+        MemoryProgram.Builder builder = new MemoryProgram.Builder();
+        expression.toInstructions().forEachOrdered(builder::add);
+        return builder.build();
     }
 
     @Override
     public Automaton produce(ProgramIterator iterator) {
+        MemoryProgram program = MemoryProgram.read(iterator);
+        return automatonCache.get(program, settings(), () -> (Automaton) instantiate(compile(program.iterator())));
+    }
+
+    /**
+     * Set how many automatons {@link #produce(ProgramIterator)} keeps for reuse. <code>0</code> disables the cache.
+     * Defaults to 64.
+     */
+    public void setAutomatonCacheSize(int size) {
+        automatonCache.setMaximumSize(size);
+    }
+
+    public long getAutomatonCacheHits() {
+        return automatonCache.getHits();
+    }
+
+    public long getAutomatonCacheMisses() {
+        return automatonCache.getMisses();
+    }
+
+    public long getAutomatonCacheEvictions() {
+        return automatonCache.getEvictions();
+    }
+
+    /**
+     * Compile the given expression to a fragment that runs it on the state of a {@link Frame}. The tape and tape
+     * index of the frame are loaded when the fragment starts and written back when it returns.
+     */
+    CompiledFragment compileFragment(Expression expression) {
         try {
-            byte[] bytes = compile(iterator);
-            Class<?> c = Unsafes.getUnsafe().defineAnonymousClass(CompiledEngine.class, bytes, null);
-            return (Automaton) c.newInstance();
-        } catch (InstantiationException | IllegalAccessException e) {
-            throw new UncheckedReflectiveOperationException(e);
+            return (CompiledFragment) instantiate(generate(CompiledFragment.class, expression, bytecode -> {
+                bytecode.addAload(1);
+                bytecode.addAstore(Expression.VAR_FRAME);
+                Expression.compileLoadTape(bytecode);
+            }, Expression::compileStoreTape));
+        } catch (IOException | CannotCompileException | BadBytecode e) {
+            throw new ParserException("Failed to compile", e);
         }
     }
 
+    private static Object instantiate(byte[] bytes) {
+        return ClassDefiner.instantiate(bytes);
+    }
+
     /**
      * Compile the given program to java bytecode. The returned array represents a .class file.
      *
@@ -52,37 +121,130 @@ public class CompiledEngine implements Engine {
      */
     public byte[] compile(ProgramIterator iterator) {
         try {
-            return compile0(iterator);
-        } catch (NotFoundException | IOException | CannotCompileException e) {
+            if (cacheDirectory == null) {
+                return compile0(iterator);
+            }
+            MemoryProgram program = MemoryProgram.read(iterator);
+            ClassCache cache = new ClassCache(cacheDirectory);
+            String key = ClassCache.key(program, settings());
+            byte[] bytes = cache.get(key);
+            if (bytes == null) {
+                bytes = compile0(program.iterator());
+                cache.put(key, bytes);
+            }
+            return bytes;
+        } catch (IOException | CannotCompileException | BadBytecode e) {
             throw new ParserException("Failed to compile", e);
         }
     }
 
-    private byte[] compile0(ProgramIterator iterator) throws NotFoundException, IOException, CannotCompileException {
+    /**
+     * Description of all settings that influence the generated code.
+     */
+    private String settings() {
+        return optimizer + " " + initialBufferSize + " " + maxMethodSize;
+    }
+
+    private byte[] compile0(ProgramIterator iterator) throws IOException, CannotCompileException, BadBytecode {
         Expression rootExpression = new ExpressionCompiler(iterator, optimizer).compile();
 
-        ClassPool pool = ClassPool.getDefault();
-        CtClass automatonClass = pool.getCtClass(Automaton.class.getName());
-        CtMethod itfM = automatonClass.getDeclaredMethods()[0];
-
-        CtClass ctClass = pool.makeClass("");
-        ctClass.setInterfaces(new CtClass[]{ automatonClass });
-        CtMethod method = new CtMethod(itfM.getReturnType(), itfM.getName(), itfM.getParameterTypes(), ctClass);
-        method.setModifiers(Modifier.FINAL | Modifier.PUBLIC);
-        Bytecode bytecode = new Bytecode(method.getMethodInfo().getConstPool());
-        bytecode.addNewarray(Opcode.T_BYTE, initialBufferSize);
-        bytecode.addAstore(Expression.VAR_TAPE);
-        bytecode.addIconst(initialBufferSize / 2);
-        bytecode.addIstore(Expression.VAR_TAPE_INDEX);
-        rootExpression.compile(bytecode);
+        return generate(Automaton.class, rootExpression, bytecode -> {
+            bytecode.addNew(Frame.class.getName());
+            bytecode.addOpcode(Opcode.DUP);
+            bytecode.addAload(Expression.VAR_IO);
+            bytecode.addIconst(initialBufferSize);
+            bytecode.addInvokespecial(
+                    Frame.class.getName(), "<init>", "(L" + IO.class.getName().replace('.', '/') + ";I)V");
+            bytecode.addAstore(Expression.VAR_FRAME);
+            Expression.compileLoadTape(bytecode);
+        }, bytecode -> {
+            bytecode.addAload(Expression.VAR_FRAME);
+            bytecode.addInvokevirtual(Frame.class.getName(), "flushOutput", "()V");
+        });
+    }
+
+    /**
+     * Generate a class implementing the given single-method interface. The method body is the given expression
+     * between the given prologue and epilogue, followed by a return instruction. The prologue must store a
+     * {@link Frame} in {@link Expression#VAR_FRAME} that outlined parts of the expression can use.
+     */
+    private byte[] generate(Class<?> itf, Expression expression, Consumer<Bytecode> prologue,
+                            Consumer<Bytecode> epilogue)
+            throws IOException, CannotCompileException, BadBytecode {
+        MethodOutliner outliner = new MethodOutliner(maxMethodSize);
+        Expression outlined = outliner.outline(expression);
+
+        // the class file is built without a ClassPool so nothing is retained after the class is generated
+        ClassFile classFile = new ClassFile(
+                false, CompiledEngine.class.getName() + "$Generated" + classCounter.incrementAndGet(), null);
+        classFile.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SUPER);
+        classFile.setInterfaces(new String[]{ itf.getName() });
+        ConstPool constPool = classFile.getConstPool();
+
+        MethodInfo constructor = new MethodInfo(constPool, MethodInfo.nameInit, "()V");
+        constructor.setAccessFlags(AccessFlag.PUBLIC);
+        Bytecode constructorBytecode = new Bytecode(constPool);
+        constructorBytecode.addAload(0);
+        constructorBytecode.addInvokespecial(Object.class.getName(), MethodInfo.nameInit, "()V");
+        addMethod(classFile, constructor, constructorBytecode);
+
+        Method itfMethod = itf.getDeclaredMethods()[0];
+        MethodInfo method = new MethodInfo(constPool, itfMethod.getName(), descriptor(itfMethod));
+        method.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL);
+        Bytecode bytecode = new Bytecode(constPool);
+        prologue.accept(bytecode);
+        outlined.compile(bytecode);
+        epilogue.accept(bytecode);
+        addMethod(classFile, method, bytecode);
+
+        for (Expression.Call call : outliner.getMethods()) {
+            MethodInfo methodInfo = new MethodInfo(
+                    constPool,
+                    call.getMethodName(),
+                    "(" + Expression.FRAME_DESCRIPTOR + ")V"
+            );
+            methodInfo.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.STATIC);
+            Bytecode outlinedBytecode = new Bytecode(constPool);
+            outlinedBytecode.addAload(0);
+            outlinedBytecode.addAstore(Expression.VAR_FRAME);
+            Expression.compileLoadTape(outlinedBytecode);
+            call.getBody().compile(outlinedBytecode);
+            Expression.compileStoreTape(outlinedBytecode);
+            addMethod(classFile, methodInfo, outlinedBytecode);
+        }
+
+        classFile.setMajorVersion(ClassFile.JAVA_8);
+        classFile.setMinorVersion(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        classFile.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Descriptor of a method with only reference parameters and a void return type, like the single methods of
+     * {@link Automaton} and {@link CompiledFragment}.
+     */
+    private static String descriptor(Method method) {
+        assert method.getReturnType() == void.class;
+        StringBuilder builder = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            assert !parameterType.isPrimitive() && !parameterType.isArray();
+            builder.append('L').append(parameterType.getName().replace('.', '/')).append(';');
+        }
+        return builder.append(")V").toString();
+    }
+
+    /**
+     * Add a method with the given code followed by a return instruction, computing its stack map frames.
+     */
+    private static void addMethod(ClassFile classFile, MethodInfo method, Bytecode bytecode)
+            throws CannotCompileException, BadBytecode {
         bytecode.addReturn(null);
         CodeAttribute ca = bytecode.toCodeAttribute();
-        ca.setMaxLocals(5);
+        ca.setMaxLocals(6);
         ca.setMaxStack(7);
-        method.getMethodInfo().setCodeAttribute(ca);
-        ctClass.addMethod(method);
-
-        ctClass.getClassFile().setVersionToJava5();
-        return ctClass.toBytecode();
+        method.setCodeAttribute(ca);
+        method.rebuildStackMap(STACK_MAP_POOL);
+        classFile.addMethod(method);
     }
 }
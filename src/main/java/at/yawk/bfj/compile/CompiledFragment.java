@@ -0,0 +1,19 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Compiled code for a part of a program, run on the state of an existing {@link Frame}.
+ *
+ * @author yawkat
+ */
+@ThreadSafe
+interface CompiledFragment {
+    void execute(Frame frame);
+}
@@ -0,0 +1,64 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import java.nio.charset.StandardCharsets;
+import javassist.bytecode.Bytecode;
+
+/**
+ * Support for constant byte arrays in generated code. Class files have no byte array constants, so the data is stored
+ * as string constants with one char per byte and decoded by the methods of this class at runtime.
+ *
+ * @author yawkat
+ */
+final class ConstantData {
+    /**
+     * Maximum number of bytes per string constant. Each char takes at most two bytes in the class file, which limits
+     * constants to 65535 bytes.
+     */
+    private static final int CHUNK_SIZE = 0x4000;
+
+    private ConstantData() {}
+
+    /**
+     * Emit code that copies the given data to the tape, starting at the given offset from the tape index.
+     */
+    static void compileCopyToTape(Bytecode bytecode, byte[] data, int offset) {
+        for (int i = 0; i < data.length; i += CHUNK_SIZE) {
+            bytecode.addLdc(chunk(data, i));
+            Expression.compileCellAddress(bytecode, offset + i);
+            bytecode.addInvokestatic(ConstantData.class.getName(), "copyToTape", "(Ljava/lang/String;[BI)V");
+        }
+    }
+
+    /**
+     * Emit code that writes the given data to the output of the frame.
+     */
+    static void compileWrite(Bytecode bytecode, byte[] data) {
+        for (int i = 0; i < data.length; i += CHUNK_SIZE) {
+            bytecode.addLdc(chunk(data, i));
+            bytecode.addAload(Expression.VAR_FRAME);
+            bytecode.addInvokestatic(
+                    ConstantData.class.getName(), "write", "(Ljava/lang/String;" + Expression.FRAME_DESCRIPTOR + ")V");
+        }
+    }
+
+    private static String chunk(byte[] data, int start) {
+        return new String(data, start, Math.min(CHUNK_SIZE, data.length - start), StandardCharsets.ISO_8859_1);
+    }
+
+    static void copyToTape(String data, byte[] tape, int index) {
+        for (int i = 0; i < data.length(); i++) {
+            tape[index + i] = (byte) data.charAt(i);
+        }
+    }
+
+    static void write(String data, Frame frame) {
+        byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+        frame.write(bytes, 0, bytes.length);
+    }
+}
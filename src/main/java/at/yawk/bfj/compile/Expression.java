@@ -6,29 +6,221 @@
 
 package at.yawk.bfj.compile;
 
-import at.yawk.bfj.IO;
 import at.yawk.bfj.Instruction;
+import at.yawk.bfj.TapeScanner;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import javassist.bytecode.Bytecode;
 import javassist.bytecode.Opcode;
+import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Value;
 
 /**
+ * Node of the program tree that the {@link Optimizer} transforms and that is compiled to bytecode or closures.
+ *
  * @author yawkat
  */
-interface Expression {
+public interface Expression {
     static final int VAR_TAPE = 2;
     static final int VAR_TAPE_INDEX = 3;
     static final int VAR_IO = 1;
+    /**
+     * Scratch variable that expressions may use within their own code.
+     */
+    static final int VAR_TEMP = 4;
+    /**
+     * Variable holding the {@link Frame} used to pass the tape state to and from other methods.
+     */
+    static final int VAR_FRAME = 5;
+
+    static final String FRAME_DESCRIPTOR = "L" + Frame.class.getName().replace('.', '/') + ";";
 
     void compile(Bytecode bytecode);
 
     Stream<Instruction> toInstructions();
 
+    /**
+     * Build a pre-bound node that executes this expression on a {@link Frame}.
+     *
+     * @param loops factory for the nodes of loops contained in this expression
+     */
+    ClosureNode toClosure(ClosureNode.LoopFactory loops);
+
+    /**
+     * Load the tape and tape index from the frame in {@link #VAR_FRAME} into their local variables.
+     */
+    static void compileLoadTape(Bytecode bytecode) {
+        bytecode.addAload(VAR_FRAME);
+        bytecode.addGetfield(Frame.class.getName(), "tape", "[B");
+        bytecode.addAstore(VAR_TAPE);
+        bytecode.addAload(VAR_FRAME);
+        bytecode.addGetfield(Frame.class.getName(), "index", "I");
+        bytecode.addIstore(VAR_TAPE_INDEX);
+    }
+
+    /**
+     * Write the tape and tape index local variables back to the frame in {@link #VAR_FRAME}.
+     */
+    static void compileStoreTape(Bytecode bytecode) {
+        bytecode.addAload(VAR_FRAME);
+        bytecode.addAload(VAR_TAPE);
+        bytecode.addPutfield(Frame.class.getName(), "tape", "[B");
+        bytecode.addAload(VAR_FRAME);
+        bytecode.addIload(VAR_TAPE_INDEX);
+        bytecode.addPutfield(Frame.class.getName(), "index", "I");
+    }
+
+    /**
+     * Push the tape and the index of the cell at the given offset from the tape index.
+     */
+    static void compileCellAddress(Bytecode bytecode, int offset) {
+        bytecode.addAload(VAR_TAPE);
+        bytecode.addIload(VAR_TAPE_INDEX);
+        if (offset != 0) {
+            bytecode.addIconst(offset);
+            bytecode.addOpcode(Opcode.IADD);
+        }
+    }
+
+    static void compileAddToIndex(Bytecode bytecode, int delta) {
+        if (delta == (byte) delta) {
+            bytecode.addOpcode(Opcode.IINC);
+            bytecode.add(VAR_TAPE_INDEX);
+            bytecode.add(delta);
+        } else {
+            bytecode.addIload(VAR_TAPE_INDEX);
+            bytecode.addIconst(delta);
+            bytecode.addOpcode(Opcode.IADD);
+            bytecode.addIstore(VAR_TAPE_INDEX);
+        }
+    }
+
+    /**
+     * Surround the given instructions with moves to the given offset and back.
+     */
+    static Stream<Instruction> atOffset(int offset, Stream<Instruction> instructions) {
+        if (offset == 0) {
+            return instructions;
+        }
+        return Stream.concat(
+                Stream.concat(new Move((short) offset).toInstructions(), instructions),
+                new Move((short) -offset).toInstructions()
+        );
+    }
+
+    /**
+     * Compute a value for every expression of a tree, children first. Blocks are walked with an explicit stack
+     * instead of recursion, so the nesting depth is only limited by the heap.
+     *
+     * @param leaf  computes the value of an expression that is not a {@link Root}
+     * @param block computes the value of a {@link Root} or {@link Loop} from the values of its children
+     */
+    static <T> T fold(Expression expression, Function<Expression, T> leaf, BiFunction<Root, List<T>, T> block) {
+        if (!(expression instanceof Root)) {
+            return leaf.apply(expression);
+        }
+        // the blocks that are being walked, innermost first, with their remaining children and the values so far
+        Deque<Root> blocks = new ArrayDeque<>();
+        Deque<Iterator<Expression>> remaining = new ArrayDeque<>();
+        Deque<List<T>> values = new ArrayDeque<>();
+        blocks.push((Root) expression);
+        remaining.push(((Root) expression).getExpressions().iterator());
+        values.push(new ArrayList<>());
+        while (true) {
+            Iterator<Expression> children = remaining.peek();
+            if (children.hasNext()) {
+                Expression child = children.next();
+                if (child instanceof Root) {
+                    blocks.push((Root) child);
+                    remaining.push(((Root) child).getExpressions().iterator());
+                    values.push(new ArrayList<>());
+                } else {
+                    values.peek().add(leaf.apply(child));
+                }
+            } else {
+                remaining.pop();
+                T value = block.apply(blocks.pop(), values.pop());
+                if (values.isEmpty()) {
+                    return value;
+                }
+                values.peek().add(value);
+            }
+        }
+    }
+
+    static String offsetToString(int offset) {
+        return offset == 0 ? "" : "@" + offset;
+    }
+
+    /**
+     * Emit a branch instruction with a 16 bit offset whose target is set later by
+     * {@link #bindForwardBranch(Bytecode, int)}.
+     *
+     * @return the position of the branch instruction
+     */
+    static int compileForwardBranch(Bytecode bytecode, int opcode) {
+        int branch = bytecode.currentPc();
+        bytecode.addOpcode(opcode);
+        bytecode.addIndex(0);
+        return branch;
+    }
+
+    /**
+     * Make the given forward branch jump to the current end of the code.
+     */
+    static void bindForwardBranch(Bytecode bytecode, int branch) {
+        bytecode.write16bit(branch + 1, bytecode.currentPc() - branch);
+    }
+
+    static void compileBackwardBranch(Bytecode bytecode, int opcode, int target) {
+        compileBranch(bytecode, opcode, target - bytecode.currentPc(), false);
+    }
+
+    /**
+     * Emit a branch by the given offset, relative to the start of the emitted code. Wide conditional branches are
+     * emitted as the inverted condition jumping over a <code>goto_w</code>. The size of the emitted code is
+     * {@link #branchSize(int, boolean)}.
+     */
+    static void compileBranch(Bytecode bytecode, int opcode, int offset, boolean wide) {
+        if (!wide) {
+            assert offset == (short) offset;
+            bytecode.addOpcode(opcode);
+            bytecode.addIndex(offset);
+        } else if (opcode == Opcode.GOTO) {
+            bytecode.addOpcode(Opcode.GOTO_W);
+            bytecode.add32bit(offset);
+        } else {
+            bytecode.addOpcode(invertBranch(opcode));
+            bytecode.addIndex(8);
+            bytecode.addOpcode(Opcode.GOTO_W);
+            bytecode.add32bit(offset - 3);
+        }
+    }
+
+    static int branchSize(int opcode, boolean wide) {
+        return !wide ? 3 : opcode == Opcode.GOTO ? 5 : 8;
+    }
+
+    static int invertBranch(int opcode) {
+        switch (opcode) {
+        case Opcode.IFEQ:
+            return Opcode.IFNE;
+        case Opcode.IFNE:
+            return Opcode.IFEQ;
+        default:
+            throw new IllegalArgumentException("Unsupported branch opcode " + opcode);
+        }
+    }
+
     @RequiredArgsConstructor
     @Getter
     @EqualsAndHashCode
@@ -37,17 +229,117 @@ interface Expression {
 
         @Override
         public void compile(Bytecode bytecode) {
-            for (Expression expression : expressions) {
-                assert bytecode.getStackDepth() == 0 : expression;
-                //bytecode.addPrintln("Run " + expression);
-                expression.compile(bytecode);
-                assert bytecode.getStackDepth() == 0 : expression;
+            compileBlock(this, bytecode);
+        }
+
+        /**
+         * Compile the children of the given block. The body of a nested loop is compiled to its own bytecode first
+         * since the loop header depends on its size. The open loops are kept on a stack instead of recursing.
+         */
+        static void compileBlock(Root root, Bytecode bytecode) {
+            Deque<Root> blocks = new ArrayDeque<>();
+            Deque<Iterator<Expression>> remaining = new ArrayDeque<>();
+            Deque<Bytecode> targets = new ArrayDeque<>();
+            blocks.push(root);
+            remaining.push(root.getExpressions().iterator());
+            targets.push(bytecode);
+            while (!blocks.isEmpty()) {
+                Bytecode target = targets.peek();
+                Iterator<Expression> children = remaining.peek();
+                if (children.hasNext()) {
+                    Expression child = children.next();
+                    assert target.getStackDepth() == 0 : child;
+                    if (child instanceof Root) {
+                        blocks.push((Root) child);
+                        remaining.push(((Root) child).getExpressions().iterator());
+                        targets.push(child instanceof Loop ? new Bytecode(bytecode.getConstPool()) : target);
+                    } else {
+                        //target.addPrintln("Run " + child);
+                        child.compile(target);
+                        assert target.getStackDepth() == 0 : child;
+                    }
+                } else {
+                    Root block = blocks.pop();
+                    remaining.pop();
+                    targets.pop();
+                    if (!blocks.isEmpty() && block instanceof Loop) {
+                        Loop.compileLoop(targets.peek(), target);
+                    }
+                }
             }
         }
 
         @Override
         public Stream<Instruction> toInstructions() {
-            return expressions.stream().flatMap(Expression::toInstructions);
+            Stream.Builder<Instruction> instructions = Stream.builder();
+            Deque<Root> blocks = new ArrayDeque<>();
+            Deque<Iterator<Expression>> remaining = new ArrayDeque<>();
+            blocks.push(this);
+            remaining.push(expressions.iterator());
+            if (this instanceof Loop) {
+                instructions.add(Instruction.LOOP_START);
+            }
+            while (!blocks.isEmpty()) {
+                Iterator<Expression> children = remaining.peek();
+                if (children.hasNext()) {
+                    Expression child = children.next();
+                    if (child instanceof Root) {
+                        blocks.push((Root) child);
+                        remaining.push(((Root) child).getExpressions().iterator());
+                        if (child instanceof Loop) {
+                            instructions.add(Instruction.LOOP_START);
+                        }
+                    } else {
+                        child.toInstructions().forEachOrdered(instructions);
+                    }
+                } else {
+                    remaining.pop();
+                    if (blocks.pop() instanceof Loop) {
+                        instructions.add(Instruction.LOOP_END);
+                    }
+                }
+            }
+            return instructions.build();
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return fold(this, expression -> expression.toClosure(loops),
+                        (block, children) -> block.toClosure(children, loops));
+        }
+
+        /**
+         * Build the node of this block from the nodes of its children.
+         */
+        ClosureNode toClosure(List<ClosureNode> children, ClosureNode.LoopFactory loops) {
+            List<ClosureNode> nodes = new ArrayList<>();
+            int blockStart = 0;
+            for (int i = 0; i <= expressions.size(); i++) {
+                Expression expression = i == expressions.size() ? null : expressions.get(i);
+                if (expression instanceof Increment || expression instanceof Move) {
+                    continue;
+                }
+                // join runs of increments and moves into one block node
+                if (i - blockStart == 1) {
+                    nodes.add(children.get(blockStart));
+                } else if (i - blockStart > 1) {
+                    nodes.add(new ClosureNode.Block(
+                            expressions.subList(blockStart, i).stream()
+                                    .mapToInt(e -> e instanceof Move ?
+                                            ((Move) e).getDelta() << 1 | 1 :
+                                            ((Increment) e).getDelta() << 1)
+                                    .toArray(),
+                            expressions.subList(blockStart, i).stream()
+                                    .mapToInt(e -> e instanceof Move ? 0 : ((Increment) e).getOffset())
+                                    .toArray()
+                    ));
+                }
+                if (expression != null) {
+                    nodes.add(children.get(i));
+                }
+                blockStart = i + 1;
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new ClosureNode.Sequence(nodes.toArray(new ClosureNode[0]));
         }
 
         @Override
@@ -68,16 +360,24 @@ interface Expression {
     }
 
     @Value
+    @AllArgsConstructor
     class Increment implements Expression {
         private final short delta;
+        /**
+         * Offset of the affected cell from the tape index.
+         */
+        private final int offset;
+
+        public Increment(short delta) {
+            this(delta, 0);
+        }
 
         @Override
         public void compile(Bytecode bytecode) {
             // stack: [
 
             // retrieve array and index
-            bytecode.addAload(VAR_TAPE);
-            bytecode.addIload(VAR_TAPE_INDEX);
+            compileCellAddress(bytecode, offset);
 
             bytecode.addOpcode(Opcode.DUP2);
 
@@ -97,38 +397,52 @@ interface Expression {
 
         @Override
         public Stream<Instruction> toInstructions() {
-            return Stream.generate(() -> delta > 0 ? Instruction.INCREMENT : Instruction.DECREMENT)
-                    .limit(Math.abs(delta));
+            return atOffset(offset, Stream.generate(() -> delta > 0 ? Instruction.INCREMENT : Instruction.DECREMENT)
+                    .limit(Math.abs(delta)));
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Increment(delta, offset);
         }
 
         @Override
         public String toString() {
-            return (delta < 0 ? "-" : "+") + Math.abs(delta);
+            return (delta < 0 ? "-" : "+") + Math.abs(delta) + offsetToString(offset);
         }
 
     }
 
+    /**
+     * Move the tape index. This does not check the tape bounds, the optimizer inserts {@link Ensure} expressions for
+     * that.
+     */
     @Value
     class Move implements Expression {
         private final short delta;
 
         @Override
         public void compile(Bytecode bytecode) {
-            assert bytecode.getStackDepth() == 0;
-
-            bytecode.addIconst(delta);
-            bytecode.addIload(VAR_TAPE_INDEX);
-            bytecode.addOpcode(Opcode.IADD);
-            // stack: [pos
+            compileAddToIndex(bytecode, delta);
+        }
 
-            if (delta < 0) {
+        /**
+         * Store the position on top of the stack to the tape index, growing the tape if the position is out of bounds.
+         *
+         * @param left whether the position may be below 0. Otherwise, it may be above the tape length.
+         */
+        static void compileMoveTo(Bytecode bytecode, boolean left) {
+            assert bytecode.getStackDepth() == 1;
+
+            int check = bytecode.currentPc();
+            int skip;
+            if (left) {
                 // stack: [pos
                 bytecode.addOpcode(Opcode.DUP);
                 // stack: [pos, pos
 
                 // if we're >= 0, skip the following resize
-                bytecode.addOpcode(Opcode.IFGE);
-                bytecode.addIndex(27); // jump to after GOTO below
+                skip = compileForwardBranch(bytecode, Opcode.IFGE);
 
                 // stack: [pos
                 bytecode.addAload(VAR_TAPE);
@@ -170,8 +484,8 @@ interface Expression {
                 // stack: [new_pos
                 assert bytecode.getStackDepth() == 1;
 
-                bytecode.addOpcode(Opcode.GOTO);
-                bytecode.addIndex(-25); // jump back to DUP just before IFGE
+                // check again
+                compileBackwardBranch(bytecode, Opcode.GOTO, check);
             } else {
                 // stack: [pos
                 bytecode.addOpcode(Opcode.DUP);
@@ -182,8 +496,7 @@ interface Expression {
                 // stack: [pos, pos, old_len
                 assert bytecode.getStackDepth() == 3;
 
-                bytecode.addOpcode(Opcode.IF_ICMPLT);
-                bytecode.addIndex(15); // todo: jump to after resize
+                skip = compileForwardBranch(bytecode, Opcode.IF_ICMPLT);
 
                 // stack: [pos
                 bytecode.addAload(VAR_TAPE);
@@ -200,9 +513,10 @@ interface Expression {
                 bytecode.addAstore(VAR_TAPE); // store new array to tape variable
                 // stack: [pos
                 assert bytecode.getStackDepth() == 1;
-                bytecode.addOpcode(Opcode.GOTO);
-                bytecode.addIndex(-15); // jump to DUP just before IF_ICMPLT
+                // check again
+                compileBackwardBranch(bytecode, Opcode.GOTO, check);
             }
+            bindForwardBranch(bytecode, skip);
 
             // stack: [new_pos
             //bytecode.addOpcode(Opcode.DUP);
@@ -215,6 +529,11 @@ interface Expression {
                     .limit(Math.abs(delta));
         }
 
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Move(delta);
+        }
+
         @Override
         public String toString() {
             return (delta < 0 ? "<" : ">") + Math.abs(delta);
@@ -222,55 +541,397 @@ interface Expression {
 
     }
 
+    /**
+     * Set a cell to a constant value, the result of loops like <code>[-]</code>.
+     */
     @Value
-    class Out implements Expression {
+    @AllArgsConstructor
+    class Set implements Expression {
+        private final byte value;
+        private final int offset;
+
+        public Set(byte value) {
+            this(value, 0);
+        }
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            compileCellAddress(bytecode, offset);
+            bytecode.addIconst(value);
+            bytecode.addOpcode(Opcode.BASTORE);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            return atOffset(offset, Stream.concat(
+                    Stream.of(Instruction.LOOP_START, Instruction.DECREMENT, Instruction.LOOP_END),
+                    new Increment(value).toInstructions()
+            ));
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Set(value, offset);
+        }
+
+        @Override
+        public String toString() {
+            return "=" + (value & 0xff) + offsetToString(offset);
+        }
+    }
+
+    /**
+     * Add a cell multiplied by a factor to the cells at the given offsets from it, then clear the cell. This is the
+     * result of balanced loops like <code>[-&gt;+&gt;+++&lt;&lt;]</code>.
+     */
+    @Value
+    @AllArgsConstructor
+    class MultiplyAdd implements Expression {
+        private final int offset;
+        /**
+         * Offsets of the target cells, relative to the source cell at {@link #offset}.
+         */
+        private final int[] offsets;
+        private final byte[] factors;
+
+        public MultiplyAdd(int[] offsets, byte[] factors) {
+            this(0, offsets, factors);
+        }
+
         @Override
         public void compile(Bytecode bytecode) {
-            // load IO object
-            bytecode.addAload(VAR_IO);
+            Bytecode body = new Bytecode(bytecode.getConstPool());
+            for (int i = 0; i < offsets.length; i++) {
+                compileCellAddress(body, offset + offsets[i]);
+                body.addOpcode(Opcode.DUP2);
+                // stack: [tape, ti, tape, ti
+                body.addOpcode(Opcode.BALOAD);
+                body.addIload(VAR_TEMP);
+                body.addIconst(factors[i]);
+                body.addOpcode(Opcode.IMUL);
+                body.addOpcode(Opcode.IADD);
+                body.addOpcode(Opcode.I2B);
+                body.addOpcode(Opcode.BASTORE);
+            }
+            new Set((byte) 0, offset).compile(body);
+
             // load item from tape
+            compileCellAddress(bytecode, offset);
+            bytecode.addOpcode(Opcode.BALOAD);
+            bytecode.addOpcode(Opcode.DUP);
+            bytecode.addIstore(VAR_TEMP);
+            // if 0, skip
+            int skip = compileForwardBranch(bytecode, Opcode.IFEQ);
+            for (byte b : body.get()) {
+                bytecode.add(b);
+            }
+            bindForwardBranch(bytecode, skip);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            Stream<Instruction> loop = Stream.of(Instruction.LOOP_START, Instruction.DECREMENT);
+            int position = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                loop = Stream.concat(loop, new Move((short) (offsets[i] - position)).toInstructions());
+                loop = Stream.concat(loop, new Increment(factors[i]).toInstructions());
+                position = offsets[i];
+            }
+            loop = Stream.concat(loop, new Move((short) -position).toInstructions());
+            return atOffset(offset, Stream.concat(loop, Stream.of(Instruction.LOOP_END)));
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.MultiplyAdd(offset, offsets, factors);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("*{");
+            for (int i = 0; i < offsets.length; i++) {
+                if (i != 0) {
+                    builder.append(", ");
+                }
+                builder.append(offsets[i]).append(": ").append(factors[i] & 0xff);
+            }
+            return builder.append('}').append(offsetToString(offset)).toString();
+        }
+    }
+
+    /**
+     * Grow the tape if necessary so that all cells from <code>low</code> to <code>high</code> relative to the tape
+     * index are within the tape.
+     */
+    @Value
+    class Ensure implements Expression {
+        private final int low;
+        private final int high;
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            // move to the boundary (growing the tape if needed) and back again
+            if (low < 0) {
+                compileAddToIndex(bytecode, low);
+                bytecode.addIload(VAR_TAPE_INDEX);
+                Move.compileMoveTo(bytecode, true);
+                compileAddToIndex(bytecode, -low);
+            }
+            if (high > 0) {
+                compileAddToIndex(bytecode, high);
+                bytecode.addIload(VAR_TAPE_INDEX);
+                Move.compileMoveTo(bytecode, false);
+                compileAddToIndex(bytecode, -high);
+            }
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            return Stream.empty();
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Ensure(low, high);
+        }
+
+        @Override
+        public String toString() {
+            return "ensure " + low + ".." + high;
+        }
+    }
+
+    /**
+     * Move by a fixed step until a zero cell is reached, the result of loops like <code>[&gt;&gt;]</code>.
+     */
+    @Value
+    class Scan implements Expression {
+        private final short step;
+
+        @Override
+        public void compile(Bytecode bytecode) {
             bytecode.addAload(VAR_TAPE);
             bytecode.addIload(VAR_TAPE_INDEX);
+            bytecode.addIconst(step);
+            bytecode.addInvokestatic(TapeScanner.class.getName(), "scan", "([BII)I");
+            // stack: [pos
+            Move.compileMoveTo(bytecode, step < 0);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            return Stream.concat(
+                    Stream.concat(
+                            Stream.of(Instruction.LOOP_START),
+                            new Move(step).toInstructions()
+                    ),
+                    Stream.of(Instruction.LOOP_END)
+            );
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Scan(step);
+        }
+
+        @Override
+        public String toString() {
+            return "?" + (step < 0 ? "<" : ">") + Math.abs(step);
+        }
+    }
+
+    @Value
+    @AllArgsConstructor
+    class Out implements Expression {
+        private final int offset;
+
+        public Out() {
+            this(0);
+        }
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            // load frame, which buffers the output
+            bytecode.addAload(VAR_FRAME);
+            // load item from tape
+            compileCellAddress(bytecode, offset);
             bytecode.addOpcode(Opcode.BALOAD);
             // invoke write(byte)
-            bytecode.addInvokeinterface(IO.class.getName(), "write", "(B)V", 2);
+            bytecode.addInvokevirtual(Frame.class.getName(), "write", "(B)V");
         }
 
         @Override
         public Stream<Instruction> toInstructions() {
-            return Stream.of(Instruction.OUTPUT);
+            return atOffset(offset, Stream.of(Instruction.OUTPUT));
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Out(offset);
         }
 
         @Override
         public String toString() {
-            return "->";
+            return "->" + offsetToString(offset);
         }
     }
 
     @Value
+    @AllArgsConstructor
     class In implements Expression {
+        private final int offset;
+
+        public In() {
+            this(0);
+        }
+
         @Override
         public void compile(Bytecode bytecode) {
             // load tape for use in BASTORE
-            bytecode.addAload(VAR_TAPE);
-            bytecode.addIload(VAR_TAPE_INDEX);
+            compileCellAddress(bytecode, offset);
 
-            // load IO object
-            bytecode.addAload(VAR_IO);
+            // load frame
+            bytecode.addAload(VAR_FRAME);
             // invoke read()
-            bytecode.addInvokeinterface(IO.class.getName(), "read", "()B", 1);
+            bytecode.addInvokevirtual(Frame.class.getName(), "read", "()B");
             // store item to tape
             bytecode.addOpcode(Opcode.BASTORE);
         }
 
         @Override
         public Stream<Instruction> toInstructions() {
-            return Stream.of(Instruction.INPUT);
+            return atOffset(offset, Stream.of(Instruction.INPUT));
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.In(offset);
         }
 
         @Override
         public String toString() {
-            return "<-";
+            return "<-" + offsetToString(offset);
+        }
+    }
+
+    /**
+     * Output of constant data, the result of joining outputs of cells with known values. The cell at
+     * <code>offset</code> holds the first byte of the data.
+     */
+    @Value
+    class Print implements Expression {
+        private final int offset;
+        private final byte[] data;
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            ConstantData.compileWrite(bytecode, data);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            // change the cell to each value in turn and back to the first one
+            Stream.Builder<Instruction> instructions = Stream.builder();
+            byte value = data[0];
+            for (int i = 0; i <= data.length; i++) {
+                byte next = i == data.length ? data[0] : data[i];
+                byte delta = (byte) (next - value);
+                Instruction instruction = delta < 0 ? Instruction.DECREMENT : Instruction.INCREMENT;
+                for (int j = 0; j < Math.abs(delta); j++) {
+                    instructions.add(instruction);
+                }
+                if (i != data.length) {
+                    instructions.add(Instruction.OUTPUT);
+                }
+                value = next;
+            }
+            return atOffset(offset, instructions.build());
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Print(data);
+        }
+
+        @Override
+        public String toString() {
+            return "print " + data.length + " bytes";
+        }
+    }
+
+    /**
+     * The result of running the start of the program at compile time, see {@link PartialEvaluator}. Writes a tape
+     * image, outputs the collected output and moves the tape index to where the evaluated code left it.
+     */
+    @Value
+    class Precomputed implements Expression {
+        /**
+         * The evaluated expressions.
+         */
+        private final List<Expression> expressions;
+        /**
+         * Offset of the first cell of the image from the tape index.
+         */
+        private final int offset;
+        private final byte[] image;
+        private final byte[] output;
+        private final int delta;
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            ConstantData.compileCopyToTape(bytecode, image, offset);
+            ConstantData.compileWrite(bytecode, output);
+            compileAddToIndex(bytecode, delta);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            return expressions.stream().flatMap(Expression::toInstructions);
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return new ClosureNode.Precomputed(offset, image, output, delta);
+        }
+
+        @Override
+        public String toString() {
+            return "precomputed " + image.length + " cells" + offsetToString(offset) + ", " + output.length +
+                   " bytes output, move " + delta;
+        }
+    }
+
+    /**
+     * An expression that was moved to its own static method of the generated class, taking the {@link Frame} as its
+     * only parameter. The method itself is generated by {@link MethodOutliner}.
+     */
+    @Value
+    class Call implements Expression {
+        private final String methodName;
+        private final Expression body;
+
+        @Override
+        public void compile(Bytecode bytecode) {
+            compileStoreTape(bytecode);
+            bytecode.addAload(VAR_FRAME);
+            bytecode.addInvokestatic(
+                    bytecode.getConstPool().getThisClassInfo(), methodName, "(" + FRAME_DESCRIPTOR + ")V");
+            compileLoadTape(bytecode);
+        }
+
+        @Override
+        public Stream<Instruction> toInstructions() {
+            return body.toInstructions();
+        }
+
+        @Override
+        public ClosureNode toClosure(ClosureNode.LoopFactory loops) {
+            return body.toClosure(loops);
+        }
+
+        @Override
+        public String toString() {
+            return methodName + " {\n  " + body.toString().replace("\n", "\n  ") + "\n}";
         }
     }
 
@@ -282,50 +943,52 @@ interface Expression {
         @Override
         public void compile(Bytecode bytecode) {
             Bytecode blockContent = new Bytecode(bytecode.getConstPool());
-            super.compile(blockContent);
+            compileBlock(this, blockContent);
+            compileLoop(bytecode, blockContent);
+        }
 
+        /**
+         * Whether a loop around a body of the given size needs wide jumps.
+         */
+        private static boolean isWide(int bodySize) {
+            // the header is at most 3 bytes
+            return 3 + branchSize(Opcode.IFEQ, true) + bodySize + branchSize(Opcode.GOTO, true) > Short.MAX_VALUE;
+        }
+
+        /**
+         * Size of the code {@link #compileLoop(Bytecode, Bytecode)} emits for a body of the given size.
+         */
+        static int compiledSize(int bodySize) {
+            boolean wide = isWide(bodySize);
+            return 3 + branchSize(Opcode.IFEQ, wide) + bodySize + branchSize(Opcode.GOTO, wide);
+        }
+
+        /**
+         * Emit a loop around the given compiled body.
+         */
+        static void compileLoop(Bytecode bytecode, Bytecode blockContent) {
             // load item from tape
+            int start = bytecode.currentPc();
             bytecode.addAload(VAR_TAPE);
             bytecode.addIload(VAR_TAPE_INDEX);
             bytecode.addOpcode(Opcode.BALOAD);
-            if (blockContent.getSize() < Short.MAX_VALUE - 10) {
-                // if 0, jump to after loop
-                bytecode.addOpcode(Opcode.IFEQ);
-                bytecode.addIndex(blockContent.getSize() + 6);
-
-                byte[] content = blockContent.get();
-                for (byte b : content) {
-                    bytecode.add(b);
-                }
-
-                bytecode.addOpcode(Opcode.GOTO);
-                bytecode.addIndex(-blockContent.getSize() - 6);
-            } else {
-                // if 0, jump to after loop
-                bytecode.addOpcode(Opcode.WIDE);
-                bytecode.addOpcode(Opcode.IFEQ);
-                bytecode.add32bit(blockContent.getSize() + 8);
-
-                byte[] content = blockContent.get();
-                for (byte b : content) {
-                    bytecode.add(b);
-                }
-
-                bytecode.addOpcode(Opcode.WIDE);
-                bytecode.addOpcode(Opcode.GOTO);
-                bytecode.addIndex(-blockContent.getSize() - 8);
+            boolean wide = isWide(blockContent.getSize());
+            // if 0, jump to after loop
+            compileBranch(bytecode, Opcode.IFEQ, branchSize(Opcode.IFEQ, wide) + blockContent.getSize() +
+                                                 branchSize(Opcode.GOTO, wide), wide);
+
+            byte[] content = blockContent.get();
+            for (byte b : content) {
+                bytecode.add(b);
             }
+
+            // jump back to loading the item
+            compileBranch(bytecode, Opcode.GOTO, start - bytecode.currentPc(), wide);
         }
 
         @Override
-        public Stream<Instruction> toInstructions() {
-            return Stream.concat(
-                    Stream.concat(
-                            Stream.of(Instruction.LOOP_START),
-                            super.toInstructions()
-                    ),
-                    Stream.of(Instruction.LOOP_END)
-            );
+        ClosureNode toClosure(List<ClosureNode> children, ClosureNode.LoopFactory loops) {
+            return loops.create(this, super.toClosure(children, loops));
         }
 
         @Override
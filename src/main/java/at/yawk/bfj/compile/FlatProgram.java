@@ -0,0 +1,371 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.Instruction;
+import at.yawk.bfj.MemoryProgram;
+import at.yawk.bfj.ParserException;
+import at.yawk.bfj.ProgramIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A program decoded into a flat opcode array without recursion and without an object per instruction. This is the
+ * form the interpreter runs and the form the compiler builds its {@link Expression} tree from. Every opcode is
+ * followed by exactly one inline operand:
+ *
+ * <ul>
+ * <li>{@link #OP_ADD}: the delta to add to the current cell</li>
+ * <li>{@link #OP_MOVE}: the delta to add to the tape position</li>
+ * <li>{@link #OP_LOOP_START}: the code index just after the matching {@link #OP_LOOP_END}</li>
+ * <li>{@link #OP_LOOP_END}: the code index just after the matching {@link #OP_LOOP_START}</li>
+ * <li>{@link #OP_OUTPUT}, {@link #OP_INPUT}: unused</li>
+ * <li>{@link #OP_CLEAR}: the odd delta of the replaced loop, like the <code>-1</code> of <code>[-]</code></li>
+ * <li>{@link #OP_SCAN}: the step size. Replaces loops like <code>[&gt;&gt;]</code></li>
+ * </ul>
+ *
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+public final class FlatProgram {
+    public static final int OP_ADD = 0;
+    public static final int OP_MOVE = 1;
+    public static final int OP_LOOP_START = 2;
+    public static final int OP_LOOP_END = 3;
+    public static final int OP_OUTPUT = 4;
+    public static final int OP_INPUT = 5;
+    public static final int OP_CLEAR = 6;
+    public static final int OP_SCAN = 7;
+
+    /**
+     * Opcode / operand pairs.
+     */
+    @Getter private final int[] code;
+
+    /**
+     * @param optimizer the optimizer whose join and removal rules should be used to fuse instructions, or
+     *                  <code>null</code> if every instruction should be decoded on its own.
+     */
+    public static FlatProgram decode(MemoryProgram program, @Nullable Optimizer optimizer) {
+        return decode(program, optimizer, false);
+    }
+
+    /**
+     * @param keepEmptyLoops whether empty loops should be kept even if the optimizer would remove them, see
+     *                       {@link Decoder#setKeepEmptyLoops(boolean)}.
+     */
+    public static FlatProgram decode(MemoryProgram program, @Nullable Optimizer optimizer, boolean keepEmptyLoops) {
+        Decoder decoder = new Decoder(optimizer, program.size(), false);
+        decoder.setKeepEmptyLoops(keepEmptyLoops);
+        for (int i = 0; i < program.size(); i++) {
+            decoder.add(program.get(i));
+        }
+        return decoder.finish();
+    }
+
+    /**
+     * Read a program up to its end or up to a loop end without matching loop start, fusing instructions with the
+     * given optimizer.
+     */
+    static FlatProgram read(ProgramIterator iterator, Optimizer optimizer) {
+        Decoder decoder = new Decoder(optimizer, 64, false);
+        Instruction instruction;
+        while ((instruction = iterator.next()) != null) {
+            if (instruction == Instruction.LOOP_END && decoder.loopDepth == 0) {
+                break;
+            }
+            decoder.add(instruction);
+        }
+        return decoder.finish();
+    }
+
+    /**
+     * Build the expression tree of this program. Loops are built with an explicit stack, so this does not recurse.
+     * Fused clear loops are turned back into loops so the optimizer decides how to compile them.
+     */
+    Expression toExpression() {
+        Deque<List<Expression>> outerBlocks = new ArrayDeque<>();
+        List<Expression> block = new ArrayList<>();
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+            case OP_ADD:
+                block.add(new Expression.Increment((short) operand));
+                break;
+            case OP_MOVE:
+                block.add(new Expression.Move((short) operand));
+                break;
+            case OP_LOOP_START:
+                outerBlocks.push(block);
+                block = new ArrayList<>();
+                break;
+            case OP_LOOP_END:
+                Expression.Loop loop = new Expression.Loop(block);
+                block = outerBlocks.pop();
+                block.add(loop);
+                break;
+            case OP_OUTPUT:
+                block.add(new Expression.Out());
+                break;
+            case OP_INPUT:
+                block.add(new Expression.In());
+                break;
+            case OP_CLEAR:
+                block.add(new Expression.Loop(
+                        Collections.singletonList(new Expression.Increment((short) operand))));
+                break;
+            case OP_SCAN:
+                block.add(new Expression.Scan((short) operand));
+                break;
+            default:
+                throw new AssertionError();
+            }
+        }
+        // loops that were still open at the end of the program
+        while (!outerBlocks.isEmpty()) {
+            Expression.Loop loop = new Expression.Loop(block);
+            block = outerBlocks.pop();
+            block.add(loop);
+        }
+        return block.size() == 1 ? block.get(0) : new Expression.Root(block);
+    }
+
+    /**
+     * Human-readable representation of the operation at the given code index, used for progress logging.
+     */
+    public String describe(int pc) {
+        switch (code[pc]) {
+        case OP_ADD:
+            return "ADD " + code[pc + 1];
+        case OP_MOVE:
+            return "MOVE " + code[pc + 1];
+        case OP_LOOP_START:
+            return "LOOP_START -> " + code[pc + 1];
+        case OP_LOOP_END:
+            return "LOOP_END -> " + code[pc + 1];
+        case OP_OUTPUT:
+            return "OUTPUT";
+        case OP_INPUT:
+            return "INPUT";
+        case OP_CLEAR:
+            return "CLEAR";
+        case OP_SCAN:
+            return "SCAN " + code[pc + 1];
+        default:
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Decodes instructions one at a time. Loops are matched with a stack and fused when they are closed.
+     */
+    public static final class Decoder {
+        @Nullable private final Optimizer optimizer;
+        /**
+         * Whether loop ends without matching loop start are allowed. Their code indices are collected and their
+         * operands are left for the caller to fill in.
+         */
+        private final boolean allowUnmatchedEnds;
+        /**
+         * Whether empty loops should be kept even if the optimizer would remove them. An empty loop never terminates
+         * once it is entered, so removing it changes the behaviour of programs that are checked for infinite loops.
+         */
+        @Setter private boolean keepEmptyLoops = false;
+
+        private int[] code;
+        /**
+         * Number of valid entries in {@link #code}.
+         */
+        private int pc = 0;
+        /**
+         * Code indices of the loop starts that are still open, innermost last.
+         */
+        private int[] loopStartStack = new int[16];
+        @Getter private int loopDepth = 0;
+        private int[] unmatchedEnds = new int[0];
+        @Getter private int unmatchedEndCount = 0;
+
+        /**
+         * @param capacity the expected number of instructions.
+         */
+        public Decoder(@Nullable Optimizer optimizer, int capacity, boolean allowUnmatchedEnds) {
+            this.optimizer = optimizer;
+            this.allowUnmatchedEnds = allowUnmatchedEnds;
+            this.code = new int[Math.max(capacity, 1) * 2];
+        }
+
+        public void add(Instruction instruction) {
+            if (pc == code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            switch (instruction) {
+            case INCREMENT:
+                emitDelta(OP_ADD, 1);
+                break;
+            case DECREMENT:
+                emitDelta(OP_ADD, -1);
+                break;
+            case MOVE_LEFT:
+                emitDelta(OP_MOVE, -1);
+                break;
+            case MOVE_RIGHT:
+                emitDelta(OP_MOVE, 1);
+                break;
+            case LOOP_START:
+                if (loopDepth >= loopStartStack.length) {
+                    loopStartStack = Arrays.copyOf(loopStartStack, loopStartStack.length * 2);
+                }
+                loopStartStack[loopDepth++] = pc;
+                code[pc] = OP_LOOP_START;
+                pc += 2;
+                break;
+            case LOOP_END:
+                if (loopDepth == 0) {
+                    if (!allowUnmatchedEnds) {
+                        throw new ParserException("Missing loop start for loop end instruction");
+                    }
+                    if (unmatchedEndCount == unmatchedEnds.length) {
+                        unmatchedEnds = Arrays.copyOf(unmatchedEnds, Math.max(16, unmatchedEndCount * 2));
+                    }
+                    unmatchedEnds[unmatchedEndCount++] = pc;
+                    code[pc] = OP_LOOP_END;
+                    pc += 2;
+                    break;
+                }
+                int start = loopStartStack[--loopDepth];
+                if (optimizer != null) {
+                    int fused = fuseLoop(start);
+                    if (fused != -1) {
+                        pc = fused;
+                        break;
+                    }
+                }
+                code[pc] = OP_LOOP_END;
+                code[pc + 1] = start + 2;
+                code[start + 1] = pc + 2;
+                pc += 2;
+                break;
+            case OUTPUT:
+                code[pc] = OP_OUTPUT;
+                pc += 2;
+                break;
+            case INPUT:
+                code[pc] = OP_INPUT;
+                pc += 2;
+                break;
+            }
+        }
+
+        /**
+         * Append an add or move operation, joining it with the previous operation where the optimizer allows it.
+         */
+        private void emitDelta(int op, int delta) {
+            if (optimizer != null && pc > 0 && code[pc - 2] == op &&
+                (op == OP_ADD ? optimizer.isJoinIncrements() : optimizer.isJoinMoves())) {
+                int joinedDelta = code[pc - 1] + delta;
+                // deltas are stored as shorts in the expression tree
+                if (joinedDelta == (short) joinedDelta) {
+                    if (joinedDelta == 0 &&
+                        (op == OP_ADD ? optimizer.isRemoveEmptyIncrements() : optimizer.isRemoveEmptyMoves())) {
+                        pc -= 2;
+                    } else {
+                        code[pc - 1] = joinedDelta;
+                    }
+                    return;
+                }
+            }
+            code[pc] = op;
+            code[pc + 1] = delta;
+            pc += 2;
+        }
+
+        /**
+         * Try to replace the loop starting at <code>start</code> and ending at the current position with a single
+         * operation.
+         *
+         * @return the new code length or <code>-1</code> if the loop could not be replaced.
+         */
+        private int fuseLoop(int start) {
+            assert optimizer != null;
+            int bodyLength = pc - start - 2;
+            if (bodyLength == 0 && optimizer.isRemoveEmptyLoops() && !keepEmptyLoops) {
+                return start;
+            }
+            if (bodyLength == 2) {
+                int op = code[start + 2];
+                int operand = code[start + 3];
+                // odd deltas are coprime to 256 so the loop always reaches 0
+                if (op == OP_ADD && (operand & 1) != 0 && optimizer.isRecognizeMultiplyLoops()) {
+                    code[start] = OP_CLEAR;
+                    code[start + 1] = operand;
+                    return start + 2;
+                }
+                if (op == OP_MOVE && optimizer.isRecognizeScanLoops()) {
+                    code[start] = OP_SCAN;
+                    code[start + 1] = operand;
+                    return start + 2;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Close the loops that are still open as if the program ended inside them and return the decoded program. Must
+         * not be called if there were unmatched loop ends.
+         */
+        public FlatProgram finish() {
+            assert unmatchedEndCount == 0;
+            for (int i = 0; i < loopDepth; i++) {
+                code[loopStartStack[i] + 1] = pc;
+            }
+            return new FlatProgram(pc == code.length ? code : Arrays.copyOf(code, pc));
+        }
+
+        /**
+         * Number of valid entries in the decoded code.
+         */
+        public int length() {
+            return pc;
+        }
+
+        /**
+         * The code decoded so far. Only the first {@link #length()} entries are valid.
+         */
+        public int[] code() {
+            return code;
+        }
+
+        /**
+         * Code index of the <code>i</code>th loop start that is still open, outermost first.
+         */
+        public int openLoopStart(int i) {
+            return loopStartStack[i];
+        }
+
+        /**
+         * Code index of the <code>i</code>th loop end without matching loop start.
+         */
+        public int unmatchedEnd(int i) {
+            return unmatchedEnds[i];
+        }
+
+        /**
+         * Drop the decoded code once it has been copied elsewhere, keeping only the loop information.
+         */
+        public void releaseCode() {
+            code = null;
+        }
+    }
+}
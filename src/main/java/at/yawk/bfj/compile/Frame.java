@@ -0,0 +1,115 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.IO;
+import java.util.Arrays;
+
+/**
+ * Mutable execution state of a single program run. The tape fields mirror the local variables
+ * {@link Expression#VAR_TAPE} and {@link Expression#VAR_TAPE_INDEX} of compiled code, which passes the frame itself in
+ * {@link Expression#VAR_FRAME}.
+ *
+ * @author yawkat
+ */
+final class Frame {
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    final IO io;
+    byte[] tape;
+    int index;
+
+    /**
+     * Output not yet passed to {@link #io}.
+     */
+    private final byte[] output = new byte[OUTPUT_BUFFER_SIZE];
+    private int outputLength = 0;
+
+    Frame(IO io, int initialBufferSize) {
+        this.io = io;
+        this.tape = new byte[initialBufferSize];
+        this.index = initialBufferSize / 2;
+    }
+
+    /**
+     * Move the tape index by the given delta, growing the tape if the new index is out of bounds.
+     */
+    void move(int delta) {
+        index += delta;
+        while (index < 0) {
+            byte[] newTape = new byte[tape.length << 1];
+            System.arraycopy(tape, 0, newTape, tape.length, tape.length);
+            index += tape.length;
+            tape = newTape;
+        }
+        while (index >= tape.length) {
+            tape = Arrays.copyOf(tape, tape.length << 1);
+        }
+    }
+
+    /**
+     * Buffer a byte of output. The buffer is passed to the IO object in a single call when it is full, after a
+     * newline, before input is read and when the program ends.
+     */
+    void write(byte value) {
+        output[outputLength++] = value;
+        if (outputLength == output.length || value == '\n') {
+            flushOutput();
+        }
+    }
+
+    /**
+     * Buffer several bytes of output at once. Flushes like {@link #write(byte)}, but only once after the whole data
+     * if it contains a newline. Data that does not fit into the buffer is passed to the IO object directly.
+     */
+    void write(byte[] data, int offset, int length) {
+        if (length > output.length - outputLength) {
+            flushOutput();
+            if (length >= output.length) {
+                io.write(data, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(data, offset, output, outputLength, length);
+        outputLength += length;
+        if (outputLength == output.length || containsNewline(data, offset, length)) {
+            flushOutput();
+        }
+    }
+
+    private static boolean containsNewline(byte[] data, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            if (data[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    byte read() {
+        // the output may be a prompt for this input
+        flushOutput();
+        return io.read();
+    }
+
+    void flushOutput() {
+        if (outputLength != 0) {
+            io.write(output, 0, outputLength);
+            outputLength = 0;
+        }
+    }
+
+    /**
+     * Grow the tape in the same way as {@link Expression.Ensure} does so that the cells from <code>low</code> to
+     * <code>high</code> relative to the tape index are within the tape.
+     */
+    void ensure(int low, int high) {
+        move(low);
+        move(high - low);
+        index -= high;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ConstPool;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Splits an expression tree into {@link Expression.Call}s so that no generated method exceeds a given bytecode size.
+ * Large methods are never JIT-compiled by HotSpot (see <code>-XX:-DontCompileHugeMethods</code>) and methods may not
+ * exceed 64KB at all.
+ *
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+class MethodOutliner {
+    private static final String METHOD_PREFIX = "outlined";
+
+    /**
+     * Scratch constant pool used to measure the code size of expressions.
+     */
+    private final ConstPool scratchPool = new ConstPool(MethodOutliner.class.getName());
+    private final int maxMethodSize;
+    /**
+     * Code size of every block built so far, so blocks are not compiled again when their parents are measured.
+     */
+    private final Map<Expression, Integer> blockSizes = new IdentityHashMap<>();
+
+    /**
+     * The calls to all outlined methods. Each outlined method has to be generated with the body of its call.
+     */
+    @Getter private final List<Expression.Call> methods = new ArrayList<>();
+
+    /**
+     * Replace parts of the given expression with calls to outlined methods until it fits into a single method.
+     */
+    Expression outline(Expression expression) {
+        return Expression.fold(expression, e -> e, this::outline);
+    }
+
+    /**
+     * Outline the children of a single block whose nested blocks were already outlined.
+     */
+    private Expression outline(Expression.Root block, List<Expression> children) {
+        // group children into calls until the remaining code is small enough. Each round shrinks the code by a
+        // factor of about maxMethodSize / call size.
+        int size = sizeOf(children);
+        while (size > maxMethodSize) {
+            List<Expression> chunked = new ArrayList<>();
+            List<Expression> chunk = new ArrayList<>();
+            int chunkSize = 0;
+            for (Expression child : children) {
+                int childSize = sizeOf(child);
+                if (chunkSize + childSize > maxMethodSize && !chunk.isEmpty()) {
+                    chunked.add(call(chunk));
+                    chunk = new ArrayList<>();
+                    chunkSize = 0;
+                }
+                chunk.add(child);
+                chunkSize += childSize;
+            }
+            chunked.add(call(chunk));
+            if (chunked.size() == children.size()) {
+                // every child is already as small as it gets
+                break;
+            }
+            children = chunked;
+            size = sizeOf(children);
+        }
+        Expression.Root outlined;
+        if (block instanceof Expression.Loop) {
+            outlined = new Expression.Loop(children);
+            size = Expression.Loop.compiledSize(size);
+        } else {
+            outlined = new Expression.Root(children);
+        }
+        blockSizes.put(outlined, size);
+        return outlined;
+    }
+
+    private Expression call(List<Expression> chunk) {
+        if (chunk.size() == 1 && chunk.get(0) instanceof Expression.Call) {
+            return chunk.get(0);
+        }
+        Expression body = chunk.size() == 1 ? chunk.get(0) : new Expression.Root(chunk);
+        Expression.Call call = new Expression.Call(METHOD_PREFIX + methods.size(), body);
+        methods.add(call);
+        return call;
+    }
+
+    private int sizeOf(List<Expression> expressions) {
+        int size = 0;
+        for (Expression expression : expressions) {
+            size += sizeOf(expression);
+        }
+        return size;
+    }
+
+    /**
+     * Code size of an expression. Blocks were measured when they were built, other expressions are compiled on their
+     * own since their code does not depend on its position.
+     */
+    private int sizeOf(Expression expression) {
+        Integer blockSize = blockSizes.get(expression);
+        if (blockSize != null) {
+            return blockSize;
+        }
+        assert !(expression instanceof Expression.Root) : "Block was not built by the outliner";
+        Bytecode bytecode = new Bytecode(scratchPool);
+        expression.compile(bytecode);
+        return bytecode.getSize();
+    }
+}
@@ -6,316 +6,1058 @@
 
 package at.yawk.bfj.compile;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.Setter;
+import lombok.ToString;
+import lombok.Value;
 
 /**
+ * Optimizes expression trees by running a list of named passes in order. The passes can be reordered and disabled
+ * individually, see {@link #setPassOrder(List)} and {@link #setPassEnabled(String, boolean)}:
+ *
+ * <ul>
+ * <li><code>collapse</code>: join neighbouring expressions and recognize scan and multiplication loops</li>
+ * <li><code>controlFlow</code>: remove expressions that have no effect given the possible cell values, see
+ * {@link FlowOptimizer}</li>
+ * <li><code>foldOutput</code>: replace outputs of cells with known values by constant prints</li>
+ * <li><code>sinkMoves</code>: defer moves to the end of straight-line blocks</li>
+ * <li><code>partialEvaluation</code>: precompute the start of the program, see {@link PartialEvaluator}</li>
+ * </ul>
+ *
+ * Bounds checks are inserted after all passes since the generated code relies on them.
+ *
  * @author yawkat
  */
+@Getter
 @Setter
+@ToString(exclude = { "passes", "recordPassStatistics", "passStatistics" })
 public class Optimizer {
+    private static final String BOUNDS_CHECKS = "boundsChecks";
+    /**
+     * Number of cells a loop may reach for the control flow analysis to track them individually.
+     */
+    private static final int MAX_TRACKED_CELLS = 1024;
+
     private boolean joinIncrements = true;
     private boolean joinMoves = true;
     private boolean removeEmptyIncrements = true;
     private boolean removeEmptyMoves = true;
     private boolean removeEmptyLoops = true;
-    private int controlFlowTapeSize = 256;
-    private int controlFlowTapeLimit = 256;
+    private boolean recognizeMultiplyLoops = true;
+    private boolean recognizeScanLoops = true;
+    private boolean joinSets = true;
+    /**
+     * Maximum number of expressions to run at compile time when precomputing the start of the program, see
+     * {@link PartialEvaluator}. <code>0</code> disables precomputation.
+     */
+    private int partialEvaluationBudget = 1000000;
+    /**
+     * Number of times the control flow analysis walks a loop body before it gives up on cells that keep changing.
+     */
+    private int controlFlowIterationLimit = 4;
+
+    @Getter(AccessLevel.NONE) private final Map<String, Pass> passes = new HashMap<>();
+    @Getter(AccessLevel.NONE) private final List<String> passOrder = new ArrayList<>();
+    @Getter(AccessLevel.NONE) private final Set<String> disabledPasses = new TreeSet<>();
+
+    /**
+     * Whether {@link #optimize(Expression)} should measure its passes, see {@link #getPassStatistics()}.
+     */
+    private boolean recordPassStatistics = false;
+    @Getter(AccessLevel.NONE) private final Map<String, PassStatistics> passStatistics = new LinkedHashMap<>();
+
+    {
+        addPass("collapse", root -> (Expression.Root) collapseDeep(root));
+        addPass("controlFlow", this::collapseControlFlow);
+        addPass("foldOutput", this::foldOutput);
+        addPass("sinkMoves", root -> (Expression.Root) sinkMoves(root));
+        addPass("partialEvaluation", root -> partialEvaluationBudget > 0 ?
+                new PartialEvaluator(partialEvaluationBudget).evaluate(root) : root);
+    }
+
+    /**
+     * Add a pass that runs after all existing passes. Bounds checks are still inserted after it.
+     */
+    public void addPass(String name, Pass pass) {
+        if (passes.containsKey(name) || name.equals(BOUNDS_CHECKS)) {
+            throw new IllegalArgumentException("Duplicate pass " + name);
+        }
+        passes.put(name, pass);
+        passOrder.add(name);
+    }
+
+    /**
+     * Names of all passes in the order they run in, including disabled passes.
+     */
+    public List<String> getPassOrder() {
+        return Collections.unmodifiableList(new ArrayList<>(passOrder));
+    }
+
+    /**
+     * Change the order the passes run in.
+     *
+     * @param order the names of all passes, each exactly once.
+     */
+    public void setPassOrder(List<String> order) {
+        if (order.size() != passes.size() || !passes.keySet().equals(new HashSet<>(order))) {
+            throw new IllegalArgumentException("Pass order must contain each of " + passOrder + " exactly once");
+        }
+        passOrder.clear();
+        passOrder.addAll(order);
+    }
+
+    public boolean isPassEnabled(String name) {
+        checkPass(name);
+        return !disabledPasses.contains(name);
+    }
+
+    public void setPassEnabled(String name, boolean enabled) {
+        checkPass(name);
+        if (enabled) {
+            disabledPasses.remove(name);
+        } else {
+            disabledPasses.add(name);
+        }
+    }
+
+    private void checkPass(String name) {
+        if (!passes.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown pass " + name + ", expected one of " + passOrder);
+        }
+    }
+
+    /**
+     * Statistics of every pass that ran since the last {@link #resetPassStatistics()}, in the order they first ran
+     * in. Only recorded if {@link #setRecordPassStatistics(boolean)} is enabled.
+     */
+    public List<PassStatistics> getPassStatistics() {
+        synchronized (passStatistics) {
+            return new ArrayList<>(passStatistics.values());
+        }
+    }
+
+    public void resetPassStatistics() {
+        synchronized (passStatistics) {
+            passStatistics.clear();
+        }
+    }
 
     Expression optimize(Expression expression) {
-        expression = collapseDeep(expression);
-        expression = collapseControlFlow(expression);
-        return expression;
+        Expression.Root root = expression instanceof Expression.Root && !(expression instanceof Expression.Loop) ?
+                (Expression.Root) expression : new Expression.Root(Collections.singletonList(expression));
+        for (String name : passOrder) {
+            if (!disabledPasses.contains(name)) {
+                root = runPass(name, passes.get(name), root);
+            }
+        }
+        // moves do not check the tape bounds, so this pass is required for correctness
+        return runPass(BOUNDS_CHECKS, r -> (Expression.Root) insertBoundsChecks(r), root);
+    }
+
+    private Expression.Root runPass(String name, Pass pass, Expression.Root root) {
+        if (!recordPassStatistics) {
+            return pass.run(root);
+        }
+        long start = System.nanoTime();
+        Expression.Root result = pass.run(root);
+        long time = System.nanoTime() - start;
+        long changed = countChangedExpressions(root, result);
+        synchronized (passStatistics) {
+            passStatistics.merge(name, new PassStatistics(name, 1, time, changed), PassStatistics::add);
+        }
+        return result;
+    }
+
+    /**
+     * Count the expressions other than blocks that are only in one of the given trees.
+     */
+    private static long countChangedExpressions(Expression.Root before, Expression.Root after) {
+        Set<Expression> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        forEachLeaf(before, removed::add);
+        long[] added = { 0 };
+        forEachLeaf(after, expression -> {
+            if (!removed.remove(expression)) {
+                added[0]++;
+            }
+        });
+        return added[0] + removed.size();
+    }
+
+    private static void forEachLeaf(Expression.Root root, Consumer<Expression> action) {
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expression expression = stack.pop();
+            if (expression instanceof Expression.Root) {
+                ((Expression.Root) expression).getExpressions().forEach(stack::push);
+            } else {
+                action.accept(expression);
+            }
+        }
+    }
+
+    /**
+     * A named step of {@link #optimize(Expression)}. Passes should take time linear in the size of the tree.
+     */
+    @FunctionalInterface
+    public interface Pass {
+        Expression.Root run(Expression.Root root);
+    }
+
+    /**
+     * Accumulated cost and effect of one pass.
+     */
+    @Value
+    public static class PassStatistics {
+        private final String name;
+        private final long runs;
+        private final long nanos;
+        /**
+         * Number of expressions, not counting loops and blocks, the pass added or removed. Replaced expressions count
+         * twice.
+         */
+        private final long changedExpressions;
+
+        private PassStatistics add(PassStatistics other) {
+            return new PassStatistics(name, runs + other.runs, nanos + other.nanos,
+                                      changedExpressions + other.changedExpressions);
+        }
     }
 
     private Expression collapseDeep(Expression expression) {
-        if (expression instanceof Expression.Root) {
-            List<Expression> expressions = ((Expression.Root) expression).getExpressions();
-            List<Expression> then = expressions.stream()
-                    .map(this::collapseDeep)
-                    .collect(Collectors.toList());
-            collapseShallow(then);
-            if (expression instanceof Expression.Loop) {
-                return new Expression.Loop(then);
+        return Expression.fold(expression, e -> e, (block, children) -> {
+            List<Expression> then = new ArrayList<>(children.size());
+            for (Expression child : children) {
+                collapseShallow(then, child);
+            }
+            if (block instanceof Expression.Loop) {
+                if (recognizeScanLoops && then.size() == 1 && then.get(0) instanceof Expression.Move) {
+                    return new Expression.Scan(((Expression.Move) then.get(0)).getDelta());
+                }
+                Expression.Loop loop = new Expression.Loop(then);
+                return recognizeMultiplyLoops ? recognizeMultiplyLoop(loop) : loop;
             } else {
                 return new Expression.Root(then);
             }
+        });
+    }
+
+    /**
+     * Append an expression to a block, joining it with the last expression of the block where possible. A joined
+     * expression is appended the same way, so it may in turn join with the expression before it. Every join shrinks
+     * the block, so building a block like this takes linear time.
+     */
+    private void collapseShallow(List<Expression> block, Expression expression) {
+        while (!isRemovable(expression)) {
+            Expression joined = block.isEmpty() ? null : join(block.get(block.size() - 1), expression);
+            if (joined == null) {
+                block.add(expression);
+                return;
+            }
+            block.remove(block.size() - 1);
+            expression = joined;
         }
-        return expression;
     }
 
-    private void collapseShallow(List<Expression> expressions) {
-        for (int i = 0; i < expressions.size(); i++) {
-            Expression a = expressions.get(i);
-            if (removeEmptyIncrements) {
-                if (a instanceof Expression.Increment && ((Expression.Increment) a).getDelta() == 0) {
-                    expressions.remove(i);
-                    continue;
+    private boolean isRemovable(Expression expression) {
+        if (expression instanceof Expression.Increment) {
+            return removeEmptyIncrements && ((Expression.Increment) expression).getDelta() == 0;
+        } else if (expression instanceof Expression.Move) {
+            return removeEmptyMoves && ((Expression.Move) expression).getDelta() == 0;
+        } else if (expression instanceof Expression.Loop) {
+            return removeEmptyLoops && ((Expression.Loop) expression).getExpressions().isEmpty();
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Join two neighbouring expressions.
+     *
+     * @return the expression replacing both, or <code>null</code> if they cannot be joined.
+     */
+    private Expression join(Expression a, Expression b) {
+        if (joinIncrements) {
+            if (a instanceof Expression.Increment && b instanceof Expression.Increment &&
+                ((Expression.Increment) a).getOffset() == ((Expression.Increment) b).getOffset()) {
+                int joinedDelta = ((Expression.Increment) a).getDelta() + ((Expression.Increment) b).getDelta();
+                if (joinedDelta == (short) joinedDelta) {
+                    return new Expression.Increment((short) joinedDelta, ((Expression.Increment) a).getOffset());
                 }
             }
-            if (removeEmptyMoves) {
-                if (a instanceof Expression.Move && ((Expression.Move) a).getDelta() == 0) {
-                    expressions.remove(i);
-                    continue;
+        }
+        if (joinSets) {
+            if (a instanceof Expression.Set && b instanceof Expression.Increment &&
+                ((Expression.Set) a).getOffset() == ((Expression.Increment) b).getOffset()) {
+                int joinedValue = ((Expression.Set) a).getValue() + ((Expression.Increment) b).getDelta();
+                return new Expression.Set((byte) joinedValue, ((Expression.Set) a).getOffset());
+            }
+            if ((a instanceof Expression.Set || a instanceof Expression.Increment) &&
+                b instanceof Expression.Set && cellOffset(a) == cellOffset(b)) {
+                // the first value is overwritten right away
+                return b;
+            }
+        }
+        if (joinMoves) {
+            if (a instanceof Expression.Move && b instanceof Expression.Move) {
+                int joinedDelta = ((Expression.Move) a).getDelta() + ((Expression.Move) b).getDelta();
+                if (joinedDelta == (short) joinedDelta) {
+                    return new Expression.Move((short) joinedDelta);
                 }
             }
-            if (removeEmptyLoops) {
-                if (a instanceof Expression.Loop && ((Expression.Loop) a).getExpressions().isEmpty()) {
-                    expressions.remove(i);
-                    continue;
+        }
+        return null;
+    }
+
+    /**
+     * Replace balanced loops that only consist of increments and moves and change the loop cell by an odd amount each
+     * iteration with a {@link Expression.Set} or {@link Expression.MultiplyAdd}.
+     */
+    private Expression recognizeMultiplyLoop(Expression.Loop loop) {
+        // offset -> delta per iteration, sorted by offset
+        SortedMap<Integer, Integer> deltas = new TreeMap<>();
+        int offset = 0;
+        for (Expression expression : loop.getExpressions()) {
+            if (expression instanceof Expression.Increment) {
+                Expression.Increment increment = (Expression.Increment) expression;
+                deltas.merge(offset + increment.getOffset(), (int) increment.getDelta(), Integer::sum);
+            } else if (expression instanceof Expression.Move) {
+                offset += ((Expression.Move) expression).getDelta();
+                if (offset != (short) offset) {
+                    return loop;
                 }
+            } else {
+                return loop;
             }
-            if (i != expressions.size() - 1) {
-                Expression b = expressions.get(i + 1);
-                if (joinIncrements) {
-                    if (a instanceof Expression.Increment && b instanceof Expression.Increment) {
-                        int joinedDelta = ((Expression.Increment) a).getDelta() + ((Expression.Increment) b).getDelta();
-                        if (joinedDelta == (short) joinedDelta) {
-                            expressions.set(i, new Expression.Increment((short) joinedDelta));
-                            expressions.remove(i + 1);
-                            if (i > 0) { i--; }
-                            continue;
-                        }
-                    }
+        }
+        int step = deltas.getOrDefault(0, 0) & 0xff;
+        // the loop has to end up where it started and odd steps are coprime to 256 so the loop cell always reaches 0
+        if (offset != 0 || (step & 1) == 0) {
+            return loop;
+        }
+        // the loop runs n times where value + n * step = 0 (mod 256), i.e. n = value * -inverse(step).
+        int inverse = step;
+        for (int i = 0; i < 3; i++) {
+            // newton iteration, doubling the number of correct low bits each time
+            inverse *= 2 - step * inverse;
+        }
+        int multiplier = -inverse;
+
+        List<Integer> offsets = new ArrayList<>();
+        List<Byte> factors = new ArrayList<>();
+        deltas.forEach((o, delta) -> {
+            byte factor = (byte) (delta * multiplier);
+            if (o != 0 && factor != 0) {
+                offsets.add(o);
+                factors.add(factor);
+            }
+        });
+        if (offsets.isEmpty()) {
+            return new Expression.Set((byte) 0);
+        }
+        byte[] factorArray = new byte[factors.size()];
+        for (int i = 0; i < factorArray.length; i++) {
+            factorArray[i] = factors.get(i);
+        }
+        return new Expression.MultiplyAdd(offsets.stream().mapToInt(i -> i).toArray(), factorArray);
+    }
+
+    private static int cellOffset(Expression expression) {
+        return expression instanceof Expression.Set ?
+                ((Expression.Set) expression).getOffset() :
+                ((Expression.Increment) expression).getOffset();
+    }
+
+    /**
+     * Defer moves to the end of each straight-line block (a run of expressions between loops and scans), addressing
+     * cells by their offset from the tape index at the start of the block instead.
+     */
+    private Expression sinkMoves(Expression expression) {
+        return Expression.fold(expression, e -> e, Optimizer::sinkMoves);
+    }
+
+    /**
+     * Sink the moves of a single block whose nested blocks were already handled.
+     */
+    private static Expression sinkMoves(Expression.Root block, List<Expression> children) {
+        List<Expression> then = new ArrayList<>();
+        int position = 0;
+        for (Expression child : children) {
+            if (child instanceof Expression.Move) {
+                int delta = ((Expression.Move) child).getDelta();
+                if (position + delta != (short) (position + delta)) {
+                    then.add(new Expression.Move((short) position));
+                    position = 0;
                 }
-                if (joinMoves) {
-                    if (a instanceof Expression.Move && b instanceof Expression.Move) {
-                        int joinedDelta = ((Expression.Move) a).getDelta() + ((Expression.Move) b).getDelta();
-                        if (joinedDelta == (short) joinedDelta) {
-                            expressions.set(i, new Expression.Move((short) joinedDelta));
-                            expressions.remove(i + 1);
-                            if (i > 0) { i--; }
-                            continue;
-                        }
-                    }
+                position += delta;
+            } else if (position == 0 && !(child instanceof Expression.Root)) {
+                // nothing to shift
+                then.add(child);
+            } else if (child instanceof Expression.Increment) {
+                Expression.Increment increment = (Expression.Increment) child;
+                then.add(new Expression.Increment(increment.getDelta(), increment.getOffset() + position));
+            } else if (child instanceof Expression.Set) {
+                Expression.Set set = (Expression.Set) child;
+                then.add(new Expression.Set(set.getValue(), set.getOffset() + position));
+            } else if (child instanceof Expression.MultiplyAdd) {
+                Expression.MultiplyAdd multiplyAdd = (Expression.MultiplyAdd) child;
+                then.add(new Expression.MultiplyAdd(
+                        multiplyAdd.getOffset() + position, multiplyAdd.getOffsets(), multiplyAdd.getFactors()));
+            } else if (child instanceof Expression.Out) {
+                then.add(new Expression.Out(((Expression.Out) child).getOffset() + position));
+            } else if (child instanceof Expression.Print) {
+                Expression.Print print = (Expression.Print) child;
+                then.add(new Expression.Print(print.getOffset() + position, print.getData()));
+            } else if (child instanceof Expression.In) {
+                then.add(new Expression.In(((Expression.In) child).getOffset() + position));
+            } else {
+                // loops and scans depend on the actual tape index
+                if (position != 0) {
+                    then.add(new Expression.Move((short) position));
+                    position = 0;
                 }
+                then.add(child);
             }
         }
+        if (position != 0) {
+            then.add(new Expression.Move((short) position));
+        }
+        return block instanceof Expression.Loop ? new Expression.Loop(then) : new Expression.Root(then);
+    }
+
+    /**
+     * Insert an {@link Expression.Ensure} at the start of each block that covers every cell accessed in the block as
+     * well as the tape index at its end. Since the tape index is in bounds at the start of the program and at the end
+     * of each block, unbalanced loops can check their cell without growing the tape. Scans grow the tape themselves.
+     *
+     * Loops with a bounded {@link #excursion(Expression, Map)} are part of the surrounding block, so they and all loops
+     * nested in them run without any checks. If the whole program is bounded, there is a single check at its start.
+     */
+    private Expression insertBoundsChecks(Expression expression) {
+        Map<Expression, int[]> excursions = blockExcursions(expression);
+        return Expression.fold(expression, e -> e, (block, children) -> {
+            if (block != expression && excursions.get(block) != null) {
+                // checked by the surrounding block
+                return block;
+            }
+            List<Expression> then = new ArrayList<>();
+            // the current block, without its check
+            List<Expression> current = new ArrayList<>();
+            int position = 0;
+            int low = 0;
+            int high = 0;
+            for (int i = 0; i < children.size(); i++) {
+                Expression child = children.get(i);
+                // the original child, since unbounded children were rebuilt
+                int[] excursion = excursion(block.getExpressions().get(i), excursions);
+                if (excursion == null) {
+                    if (low != 0 || high != 0) {
+                        then.add(new Expression.Ensure(low, high));
+                    }
+                    then.addAll(current);
+                    then.add(child);
+                    current.clear();
+                    position = 0;
+                    low = 0;
+                    high = 0;
+                } else {
+                    low = Math.min(low, position + excursion[0]);
+                    high = Math.max(high, position + excursion[1]);
+                    position += excursion[2];
+                    current.add(child);
+                }
+            }
+            if (low != 0 || high != 0) {
+                then.add(new Expression.Ensure(low, high));
+            }
+            then.addAll(current);
+            return block instanceof Expression.Loop ? new Expression.Loop(then) : new Expression.Root(then);
+        });
     }
 
-    private Expression collapseControlFlow(Expression expression) {
-        FlowOptimizer flowOptimizer = new FlowOptimizer();
-        List<FlowOptimizer.Tape> tapes = new ArrayList<>();
-        tapes.add(flowOptimizer.new Tape());
-        return flowOptimizer.walkFlow(expression, tapes);
+    /**
+     * Compute the {@link #excursion(Expression, Map)} of every block in the given tree at once, so passes that need
+     * it on every nesting level stay linear.
+     *
+     * @return the excursion of each {@link Expression.Root} and {@link Expression.Loop} by identity, with
+     * <code>null</code> values for unbounded blocks.
+     */
+    private static Map<Expression, int[]> blockExcursions(Expression expression) {
+        Map<Expression, int[]> excursions = new IdentityHashMap<>();
+        Expression.fold(expression, Optimizer::leafExcursion, (block, children) -> {
+            int[] excursion = blockExcursion(block, children);
+            excursions.put(block, excursion);
+            return excursion;
+        });
+        return excursions;
     }
 
-    private final class FlowOptimizer {
-        private boolean hitLimit = false;
+    /**
+     * Compute the cells an expression may access and the net movement of the tape index, all relative to the tape
+     * index before the expression.
+     *
+     * @param excursions the excursions of the blocks of the tree the expression is part of, see
+     *                   {@link #blockExcursions(Expression)}
+     * @return <code>{ low, high, displacement }</code> or <code>null</code> if the accessed range is not bounded, i.e.
+     * the expression contains a scan or a loop that does not end up where it started.
+     */
+    private static int[] excursion(Expression expression, Map<Expression, int[]> excursions) {
+        if (expression instanceof Expression.Root) {
+            assert excursions.containsKey(expression) : expression;
+            return excursions.get(expression);
+        }
+        return leafExcursion(expression);
+    }
 
-        private Expression walkFlow(Expression expression, List<Tape> tapes) {
-            if (tapes.isEmpty()) {
+    private static int[] blockExcursion(Expression.Root block, List<int[]> children) {
+        int position = 0;
+        int low = 0;
+        int high = 0;
+        for (int[] excursion : children) {
+            if (excursion == null) {
                 return null;
             }
-            if (tapes.size() >= controlFlowTapeLimit) {
-                hitLimit = true;
-                return expression;
+            low = Math.min(low, position + excursion[0]);
+            high = Math.max(high, position + excursion[1]);
+            position += excursion[2];
+        }
+        if (block instanceof Expression.Loop && position != 0) {
+            // every iteration starts somewhere else
+            return null;
+        }
+        return new int[]{ low, high, position };
+    }
+
+    private static int[] leafExcursion(Expression expression) {
+        if (expression instanceof Expression.Move) {
+            int delta = ((Expression.Move) expression).getDelta();
+            return new int[]{ Math.min(0, delta), Math.max(0, delta), delta };
+        } else if (expression instanceof Expression.Increment) {
+            return cellExcursion(((Expression.Increment) expression).getOffset());
+        } else if (expression instanceof Expression.Set) {
+            return cellExcursion(((Expression.Set) expression).getOffset());
+        } else if (expression instanceof Expression.Out) {
+            return cellExcursion(((Expression.Out) expression).getOffset());
+        } else if (expression instanceof Expression.In) {
+            return cellExcursion(((Expression.In) expression).getOffset());
+        } else if (expression instanceof Expression.MultiplyAdd) {
+            Expression.MultiplyAdd multiplyAdd = (Expression.MultiplyAdd) expression;
+            int[] excursion = cellExcursion(multiplyAdd.getOffset());
+            for (int target : multiplyAdd.getOffsets()) {
+                excursion[0] = Math.min(excursion[0], multiplyAdd.getOffset() + target);
+                excursion[1] = Math.max(excursion[1], multiplyAdd.getOffset() + target);
+            }
+            return excursion;
+        } else if (expression instanceof Expression.Scan) {
+            return null;
+        } else if (expression instanceof Expression.Print) {
+            // prints do not access the tape
+            return new int[]{ 0, 0, 0 };
+        } else if (expression instanceof Expression.Precomputed) {
+            Expression.Precomputed precomputed = (Expression.Precomputed) expression;
+            int delta = precomputed.getDelta();
+            if (precomputed.getImage().length == 0) {
+                return new int[]{ Math.min(0, delta), Math.max(0, delta), delta };
             }
+            return new int[]{
+                    Math.min(Math.min(0, delta), precomputed.getOffset()),
+                    Math.max(Math.max(0, delta), precomputed.getOffset() + precomputed.getImage().length - 1),
+                    delta
+            };
+        } else {
+            throw new AssertionError(expression);
+        }
+    }
 
-            if (expression instanceof Expression.Increment) {
-                for (Tape tape : tapes) {
-                    tape.increment(((Expression.Increment) expression).getDelta());
-                }
-            } else if (expression instanceof Expression.Move) {
-                for (Tape tape : tapes) {
-                    tape.move(((Expression.Move) expression).getDelta());
-                }
-            } else if (expression instanceof Expression.Loop) {
-                List<Tape> downTapes = new ArrayList<>();
-                for (int i = 0; i < tapes.size(); i++) {
-                    Tape tape = tapes.get(i);
-                    if (tape.hasOther(0)) {
-                        downTapes.add(tape);
-                        if (tape.has(0)) {
-                            Tape clone = new Tape();
-                            clone.set(0, true);
-                            tapes.set(i, clone);
-                        } else {
-                            tapes.remove(i--);
-                        }
+    private static int[] cellExcursion(int offset) {
+        return new int[]{ Math.min(0, offset), Math.max(0, offset), 0 };
+    }
+
+    private Expression.Root collapseControlFlow(Expression.Root root) {
+        return new FlowOptimizer(true, false).walk(root, new Tape(StateSet.ZERO));
+    }
+
+    private Expression.Root foldOutput(Expression.Root root) {
+        return new FlowOptimizer(false, true).walk(root, new Tape(StateSet.ZERO));
+    }
+
+    /**
+     * Simplifies expressions given the values the tape cells may have at that point.
+     *
+     * The walk keeps a single abstract {@link Tape}. Loops whose body ends where it started are walked until the
+     * possible values at the loop start do not change anymore, so only the cells the body can reach are involved. For
+     * other loops and scans the position is not known afterwards and all cells are reset to unknown.
+     */
+    @RequiredArgsConstructor
+    private final class FlowOptimizer {
+        /**
+         * Remove expressions that have no effect, for example loops on cells that are always zero.
+         */
+        private final boolean removeRedundant;
+        /**
+         * Replace outputs of cells with a single known value by {@link Expression.Print}s. All such outputs of a
+         * straight-line run of expressions are joined into one print.
+         */
+        private final boolean foldOutput;
+
+        /**
+         * Excursions of the blocks of the walked tree, see {@link #blockExcursions(Expression)}.
+         */
+        private Map<Expression, int[]> excursions;
+
+        /**
+         * Walk the given tree and return the simplified tree. Nested blocks are walked with an explicit stack instead
+         * of recursion.
+         */
+        private Expression.Root walk(Expression.Root root, Tape tape) {
+            excursions = blockExcursions(root);
+            Deque<WalkedBlock> blocks = new ArrayDeque<>();
+            blocks.push(new WalkedBlock(root, null, 0));
+            while (true) {
+                WalkedBlock block = blocks.peek();
+                if (!block.remaining.hasNext()) {
+                    blocks.pop();
+                    Expression walked = leave(block, tape);
+                    if (blocks.isEmpty()) {
+                        return (Expression.Root) walked;
                     }
+                    if (walked != null) {
+                        blocks.peek().then.add(walked);
+                    }
+                    continue;
                 }
-                List<Expression> newLoop = new ArrayList<>();
-                for (Expression child : ((Expression.Root) expression).getExpressions()) {
-                    child = walkFlow(child, downTapes);
-                    if (hitLimit) { return expression; }
-                    if (child != null) {
-                        newLoop.add(child);
+                Expression child = block.remaining.next();
+                if (foldOutput && child instanceof Expression.Out) {
+                    int offset = ((Expression.Out) child).getOffset();
+                    int value = tape.get(offset).value();
+                    if (value != -1) {
+                        if (block.printIndex == -1) {
+                            block.printIndex = block.then.size();
+                            block.printOffset = offset;
+                            block.then.add(null);
+                        }
+                        block.output.write(value);
+                        continue;
                     }
                 }
-                tapes.addAll(
-                        downTapes.stream()
-                                .filter(downTape -> !tapes.contains(downTape))
-                                .collect(Collectors.toList())
-                );
-                if (newLoop.isEmpty()) {
-                    return null;
+                if (!(child instanceof Expression.Increment || child instanceof Expression.Move ||
+                      child instanceof Expression.Set || child instanceof Expression.MultiplyAdd)) {
+                    // the output has to stay in order with other output and input
+                    block.flushPrint();
                 }
-                return new Expression.Loop(newLoop);
-            } else if (expression instanceof Expression.Root) {
-                List<Expression> newLoop = new ArrayList<>();
-                for (Expression child : ((Expression.Root) expression).getExpressions()) {
-                    child = walkFlow(child, tapes);
-                    if (hitLimit) { return expression; }
+                if (child instanceof Expression.Loop) {
+                    if (!tape.get(0).hasOther(0)) {
+                        // the loop is never entered
+                        if (!removeRedundant) {
+                            block.then.add(child);
+                        }
+                        continue;
+                    }
+                    int[] excursion = trackedExcursion(child);
+                    StateSet[] head = null;
+                    int low = 0;
+                    if (excursion != null) {
+                        low = excursion[0];
+                        head = loopHead((Expression.Loop) child, tape, low, excursion[1]);
+                        tape.restore(low, head);
+                    } else {
+                        // we don't know where each iteration starts
+                        tape.reset(StateSet.ALL);
+                    }
+                    tape.set(0, tape.get(0).without(0));
+                    blocks.push(new WalkedBlock((Expression.Root) child, head, low));
+                } else if (child instanceof Expression.Root) {
+                    blocks.push(new WalkedBlock((Expression.Root) child, null, 0));
+                } else {
+                    child = simplify(child, tape);
                     if (child != null) {
-                        newLoop.add(child);
+                        block.then.add(child);
                     }
                 }
-                return new Expression.Root(newLoop);
-            } else if (expression instanceof Expression.In) {
-                tapes.forEach(FlowOptimizer.Tape::flipOn);
             }
-            return expression;
         }
 
-        private final class Tape {
-            private final StateSet[] possibleValues;
-            private int pos;
-
-            private int hashCode = -1;
+        /**
+         * The excursion of a loop if it is bounded and narrow enough to track its cells. Wider loops are treated like
+         * unbounded ones, otherwise deeply nested loops would cost time and memory quadratic in their depth.
+         */
+        @Nullable
+        private int[] trackedExcursion(Expression loop) {
+            int[] excursion = excursion(loop, excursions);
+            return excursion != null && excursion[1] - excursion[0] < MAX_TRACKED_CELLS ? excursion : null;
+        }
 
-            public Tape() {
-                this.possibleValues =
-                        Stream.generate(StateSet::new)
-                                .limit(controlFlowTapeSize)
-                                .toArray(StateSet[]::new);
-                this.pos = controlFlowTapeSize / 2;
+        /**
+         * Finish walking a block and return its simplified form, or <code>null</code> if it can be removed entirely.
+         */
+        private Expression leave(WalkedBlock block, Tape tape) {
+            block.flushPrint();
+            if (!(block.block instanceof Expression.Loop)) {
+                return new Expression.Root(block.then);
             }
-
-            private Tape(Tape prev) {
-                this.possibleValues = prev.possibleValues.clone();
-                this.pos = prev.pos;
+            // the loop is left from the start of some iteration
+            if (block.head != null) {
+                tape.restore(block.headLow, block.head);
+            } else {
+                tape.reset(StateSet.ALL);
             }
-
-            public void move(int delta) {
-                pos += delta;
-                hashCode = -1;
-                hitLimit |= pos < 0 || pos >= possibleValues.length;
+            tape.set(0, StateSet.ZERO);
+            if (block.then.isEmpty() && removeRedundant) {
+                return null;
             }
+            return new Expression.Loop(block.then);
+        }
 
-            public void increment(int delta) {
-                possibleValues[pos].rotate(-delta);
+        /**
+         * Simplify an expression that is not a block and apply its effect to the tape.
+         *
+         * @return the simplified expression or <code>null</code> if it can be removed entirely.
+         */
+        private Expression simplify(Expression expression, Tape tape) {
+            if (removeRedundant) {
+                if (expression instanceof Expression.Set) {
+                    Expression.Set set = (Expression.Set) expression;
+                    if (!tape.get(set.getOffset()).hasOther(set.getValue() & 0xff)) {
+                        // the cell already has this value
+                        return null;
+                    }
+                } else if (expression instanceof Expression.Scan || expression instanceof Expression.MultiplyAdd) {
+                    int offset = expression instanceof Expression.MultiplyAdd ?
+                            ((Expression.MultiplyAdd) expression).getOffset() : 0;
+                    if (!tape.get(offset).hasOther(0)) {
+                        // already on a zero cell, or nothing would be added
+                        return null;
+                    }
+                }
             }
+            transfer(expression, tape);
+            return expression;
+        }
 
-            public void flipOn() {
-                possibleValues[pos].flipOn();
+        /**
+         * Compute the possible values of the cells in the given range at the start of any iteration of a balanced
+         * loop.
+         */
+        private StateSet[] loopHead(Expression.Loop loop, Tape tape, int low, int high) {
+            StateSet[] head = tape.snapshot(low, high);
+            for (int iteration = 0; ; iteration++) {
+                tape.restore(low, head);
+                tape.set(0, tape.get(0).without(0));
+                for (Expression child : loop.getExpressions()) {
+                    transfer(child, tape);
+                }
+                StateSet[] after = tape.snapshot(low, high);
+                StateSet[] next = new StateSet[head.length];
+                boolean changed = false;
+                for (int i = 0; i < next.length; i++) {
+                    // only ever growing the sets makes sure this terminates
+                    next[i] = head[i].join(after[i]);
+                    if (!next[i].equals(head[i])) {
+                        changed = true;
+                        if (iteration >= controlFlowIterationLimit) {
+                            next[i] = StateSet.ALL;
+                        }
+                    }
+                }
+                if (!changed) {
+                    return head;
+                }
+                head = next;
             }
+        }
 
-            public boolean has(int val) {
-                return possibleValues[pos].get(val);
+        /**
+         * Apply the effect of the given expression to the tape without changing the expression.
+         */
+        private void transfer(Expression expression, Tape tape) {
+            if (expression instanceof Expression.Increment) {
+                Expression.Increment increment = (Expression.Increment) expression;
+                tape.set(increment.getOffset(), tape.get(increment.getOffset()).rotate(increment.getDelta()));
+            } else if (expression instanceof Expression.Move) {
+                tape.move(((Expression.Move) expression).getDelta());
+            } else if (expression instanceof Expression.Loop) {
+                if (!tape.get(0).hasOther(0)) {
+                    return;
+                }
+                int[] excursion = trackedExcursion(expression);
+                if (excursion != null) {
+                    // don't walk nested loops to keep the analysis linear, just forget the cells they may change
+                    for (int offset = excursion[0]; offset <= excursion[1]; offset++) {
+                        tape.set(offset, StateSet.ALL);
+                    }
+                } else {
+                    tape.reset(StateSet.ALL);
+                }
+                tape.set(0, StateSet.ZERO);
+            } else if (expression instanceof Expression.Root) {
+                for (Expression child : ((Expression.Root) expression).getExpressions()) {
+                    transfer(child, tape);
+                }
+            } else if (expression instanceof Expression.In) {
+                tape.set(((Expression.In) expression).getOffset(), StateSet.ALL);
+            } else if (expression instanceof Expression.Set) {
+                Expression.Set set = (Expression.Set) expression;
+                tape.set(set.getOffset(), StateSet.only(set.getValue() & 0xff));
+            } else if (expression instanceof Expression.Scan) {
+                if (tape.get(0).hasOther(0)) {
+                    // we can't know where the scan ends up
+                    tape.reset(StateSet.ALL);
+                    tape.set(0, StateSet.ZERO);
+                }
+            } else if (expression instanceof Expression.MultiplyAdd) {
+                Expression.MultiplyAdd multiplyAdd = (Expression.MultiplyAdd) expression;
+                if (tape.get(multiplyAdd.getOffset()).hasOther(0)) {
+                    for (int offset : multiplyAdd.getOffsets()) {
+                        tape.set(multiplyAdd.getOffset() + offset, StateSet.ALL);
+                    }
+                    tape.set(multiplyAdd.getOffset(), StateSet.ZERO);
+                }
+            } else if (expression instanceof Expression.Precomputed) {
+                Expression.Precomputed precomputed = (Expression.Precomputed) expression;
+                byte[] image = precomputed.getImage();
+                for (int i = 0; i < image.length; i++) {
+                    tape.set(precomputed.getOffset() + i, StateSet.only(image[i]));
+                }
+                tape.move(precomputed.getDelta());
+            } else if (!(expression instanceof Expression.Out || expression instanceof Expression.Print)) {
+                throw new AssertionError(expression);
             }
+        }
 
-            public boolean hasOther(int val) {
-                return possibleValues[pos].getOther(val);
+        /**
+         * A block that is being walked, with the simplified expressions so far.
+         */
+        private final class WalkedBlock {
+            private final Expression.Root block;
+            private final Iterator<Expression> remaining;
+            /**
+             * For bounded loops, the possible values of the cells at the start of any iteration, starting at offset
+             * {@link #headLow}.
+             */
+            @Nullable private final StateSet[] head;
+            private final int headLow;
+
+            private final List<Expression> then = new ArrayList<>();
+            // known output of the current straight-line run, to be printed at the index of its first output
+            private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            private int printIndex = -1;
+            private int printOffset = 0;
+
+            WalkedBlock(Expression.Root block, @Nullable StateSet[] head, int headLow) {
+                this.block = block;
+                this.remaining = block.getExpressions().iterator();
+                this.head = head;
+                this.headLow = headLow;
             }
 
-            public void set(int i, boolean val) {
-                possibleValues[pos].set(i, val);
+            void flushPrint() {
+                if (printIndex != -1) {
+                    then.set(printIndex, new Expression.Print(printOffset, output.toByteArray()));
+                    output.reset();
+                    printIndex = -1;
+                }
             }
+        }
+    }
 
-            // todo: better equals & hashcode when tapes are just offset of each other?
+    /**
+     * Abstract tape holding the possible values of each cell, relative to the current position. Cells that were never
+     * set have the possible values of {@link #fallback}.
+     */
+    private static final class Tape {
+        private StateSet fallback;
+        private StateSet[] cells;
+        /**
+         * Index into {@link #cells} of the current position.
+         */
+        private int pos;
+
+        Tape(StateSet fallback) {
+            reset(fallback);
+        }
 
-            @Override
-            public boolean equals(Object obj) {
-                if (!(obj instanceof Tape)) { return false; }
-                Tape other = (Tape) obj;
-                if (other.hashCode() != this.hashCode()) { return false; }
-                return this.pos == other.pos &&
-                       Arrays.equals(this.possibleValues, other.possibleValues);
+        /**
+         * Forget all cells and set them to the given possible values.
+         */
+        void reset(StateSet fallback) {
+            this.fallback = fallback;
+            this.cells = new StateSet[16];
+            Arrays.fill(cells, fallback);
+            this.pos = cells.length / 2;
+        }
+
+        void move(int delta) {
+            pos += delta;
+        }
+
+        StateSet get(int offset) {
+            int index = pos + offset;
+            return index < 0 || index >= cells.length ? fallback : cells[index];
+        }
+
+        void set(int offset, StateSet value) {
+            int index = pos + offset;
+            if (index < 0) {
+                int grow = Math.max(cells.length, -index);
+                StateSet[] newCells = new StateSet[cells.length + grow];
+                Arrays.fill(newCells, 0, grow, fallback);
+                System.arraycopy(cells, 0, newCells, grow, cells.length);
+                cells = newCells;
+                pos += grow;
+                index += grow;
+            } else if (index >= cells.length) {
+                int oldLength = cells.length;
+                cells = Arrays.copyOf(cells, Math.max(oldLength * 2, index + 1));
+                Arrays.fill(cells, oldLength, cells.length, fallback);
             }
+            cells[index] = value;
+        }
 
-            @Override
-            public int hashCode() {
-                if (hashCode == -1) {
-                    int hc = pos;
-                    for (StateSet pv : possibleValues) {
-                        hc *= 3;
-                        hc ^= pv.hashCode();
-                    }
-                    hashCode = hc;
-                }
-                return hashCode;
+        StateSet[] snapshot(int low, int high) {
+            StateSet[] snapshot = new StateSet[high - low + 1];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = get(low + i);
             }
+            return snapshot;
         }
 
+        void restore(int low, StateSet[] snapshot) {
+            for (int i = 0; i < snapshot.length; i++) {
+                set(low + i, snapshot[i]);
+            }
+        }
     }
 
+    /**
+     * Immutable set of possible byte values of a cell, stored as a 256 bit set.
+     */
     private static final class StateSet {
-        private final boolean[] values = new boolean[256];
-        private int offset = 0;
+        static final StateSet ZERO = new StateSet(new long[]{ 1, 0, 0, 0 });
+        static final StateSet ALL = new StateSet(new long[]{ -1, -1, -1, -1 });
 
-        private int hashCode = -1;
+        private static final StateSet[] SINGLETONS = new StateSet[256];
 
-        { values[0] = true; }
-
-        public void rotate(int off) {
-            int newOffset = (offset + off) % 256;
-            if (newOffset < 0) {
-                newOffset += 256;
+        static {
+            for (int i = 0; i < SINGLETONS.length; i++) {
+                long[] bits = new long[4];
+                bits[i >>> 6] = 1L << i;
+                SINGLETONS[i] = new StateSet(bits);
             }
-            offset = newOffset;
-            hashCode = -1;
         }
 
-        public void flipOn() {
-            Arrays.fill(values, true);
-            hashCode = -1;
+        private final long[] bits;
+
+        private StateSet(long[] bits) {
+            this.bits = bits;
         }
 
-        public boolean get(int i) {
-            return values[(offset + i) % 256];
+        static StateSet only(int value) {
+            return SINGLETONS[value & 0xff];
         }
 
-        public boolean getOther(int i) {
-            i = (offset + i) % 256;
-            for (int j = 0; j < 256; j++) {
-                if (values[j] && j != i) {
-                    return true;
+        /**
+         * Add the given delta to every value.
+         */
+        StateSet rotate(int delta) {
+            delta &= 0xff;
+            if (delta == 0 || this == ALL) {
+                return this;
+            }
+            int words = delta >>> 6;
+            int shift = delta & 63;
+            long[] rotated = new long[4];
+            for (int i = 0; i < 4; i++) {
+                long word = bits[(i - words) & 3] << shift;
+                if (shift != 0) {
+                    word |= bits[(i - words - 1) & 3] >>> (64 - shift);
                 }
+                rotated[i] = word;
             }
-            return false;
+            return new StateSet(rotated);
         }
 
-        public boolean isEmpty() {
-            for (int i = 0; i < values.length; i++) {
-                boolean value = values[i];
-                if (value && i != offset) { return false; }
+        StateSet join(StateSet other) {
+            if (this == other || other == ALL) {
+                return other;
             }
-            return true;
+            long[] joined = new long[4];
+            for (int i = 0; i < 4; i++) {
+                joined[i] = bits[i] | other.bits[i];
+            }
+            return new StateSet(joined);
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof StateSet)) { return false; }
-            StateSet other = (StateSet) obj;
-            for (int i = 0; i < 256; i++) {
-                if (values[(offset + i) % 256] != other.values[(other.offset + i) % 256]) {
-                    return false;
+        StateSet without(int value) {
+            if (!has(value)) {
+                return this;
+            }
+            long[] remaining = bits.clone();
+            remaining[value >>> 6] &= ~(1L << value);
+            return new StateSet(remaining);
+        }
+
+        /**
+         * The only value in this set, or <code>-1</code> if there is no single value.
+         */
+        int value() {
+            int value = -1;
+            for (int i = 0; i < 4; i++) {
+                if (bits[i] != 0) {
+                    if (value != -1 || Long.bitCount(bits[i]) != 1) {
+                        return -1;
+                    }
+                    value = i * 64 + Long.numberOfTrailingZeros(bits[i]);
                 }
             }
-            return true;
+            return value;
         }
 
-        @Override
-        public int hashCode() {
-            if (hashCode == -1) {
-                int hc = offset;
-                hc *= 11;
-                for (int i = 0; i < values.length; i++) {
-                    boolean value = values[(offset + i) % 256];
-                    hc ^= (value ? 1 : 0) << (i % 31);
+        boolean has(int value) {
+            return (bits[value >>> 6] & (1L << value)) != 0;
+        }
+
+        /**
+         * Whether this set contains any value other than the given one.
+         */
+        boolean hasOther(int value) {
+            for (int i = 0; i < 4; i++) {
+                long word = i == value >>> 6 ? bits[i] & ~(1L << value) : bits[i];
+                if (word != 0) {
+                    return true;
                 }
-                hashCode = hc;
             }
-            return hashCode;
+            return false;
         }
 
-        public void set(int i, boolean val) {
-            values[(offset + i) % 256] = val;
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StateSet && Arrays.equals(bits, ((StateSet) obj).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bits);
         }
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.IO;
+import at.yawk.bfj.TapeScanner;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs the start of a program at compile time, up to the first expression that reads input or until a step budget is
+ * used up, and replaces it with an {@link Expression.Precomputed} holding the resulting tape and output.
+ *
+ * @author yawkat
+ */
+final class PartialEvaluator {
+    private final long budget;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final IO io = new IO() {
+        @Override
+        public byte read() {
+            throw new AssertionError("Input cannot be evaluated at compile time");
+        }
+
+        @Override
+        public void write(byte value) {
+            output.write(value);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            output.write(buffer, offset, length);
+        }
+    };
+    private Frame frame;
+    /**
+     * Tape index at the start of the program. This changes when the tape grows to the left.
+     */
+    private int origin;
+    private long steps;
+
+    PartialEvaluator(long budget) {
+        this.budget = budget;
+        reset();
+    }
+
+    /**
+     * Start over with an empty tape and no output.
+     */
+    private void reset() {
+        frame = new Frame(io, 64);
+        origin = frame.index;
+        steps = 0;
+        output.reset();
+    }
+
+    Expression.Root evaluate(Expression.Root root) {
+        List<Expression> expressions = root.getExpressions();
+        int evaluated = 0;
+        try {
+            while (evaluated < expressions.size() && !readsInput(expressions.get(evaluated))) {
+                execute(expressions.get(evaluated));
+                evaluated++;
+            }
+        } catch (BudgetExhaustedException e) {
+            // the last expression stopped halfway. instead of saving the state before every expression, run the
+            // completed expressions again, which fit into the budget and so take at most as long as the first run.
+            reset();
+            for (int i = 0; i < evaluated; i++) {
+                execute(expressions.get(i));
+            }
+        }
+        if (evaluated == 0) {
+            return root;
+        }
+
+        byte[] tape = frame.tape;
+        int first = 0;
+        while (first < tape.length && tape[first] == 0) {
+            first++;
+        }
+        int last = tape.length;
+        while (last > first && tape[last - 1] == 0) {
+            last--;
+        }
+        List<Expression> then = new ArrayList<>();
+        then.add(new Expression.Precomputed(
+                new ArrayList<>(expressions.subList(0, evaluated)),
+                first - origin,
+                Arrays.copyOfRange(tape, first, last),
+                output.toByteArray(),
+                frame.index - origin
+        ));
+        then.addAll(expressions.subList(evaluated, expressions.size()));
+        return new Expression.Root(then);
+    }
+
+    private static boolean readsInput(Expression expression) {
+        return Expression.fold(expression, e -> e instanceof Expression.In,
+                               (block, children) -> children.contains(true));
+    }
+
+    /**
+     * Run an expression. Nested blocks are run with an explicit stack instead of recursion.
+     */
+    private void execute(Expression expression) {
+        step();
+        if (!(expression instanceof Expression.Root)) {
+            executeLeaf(expression);
+            return;
+        }
+        if (expression instanceof Expression.Loop && frame.tape[frame.index] == 0) {
+            return;
+        }
+        // the blocks that are running, innermost first, with their remaining children
+        Deque<Expression.Root> blocks = new ArrayDeque<>();
+        Deque<Iterator<Expression>> remaining = new ArrayDeque<>();
+        blocks.push((Expression.Root) expression);
+        remaining.push(((Expression.Root) expression).getExpressions().iterator());
+        while (!blocks.isEmpty()) {
+            Iterator<Expression> children = remaining.peek();
+            if (children.hasNext()) {
+                Expression child = children.next();
+                step();
+                if (!(child instanceof Expression.Root)) {
+                    executeLeaf(child);
+                } else if (!(child instanceof Expression.Loop) || frame.tape[frame.index] != 0) {
+                    blocks.push((Expression.Root) child);
+                    remaining.push(((Expression.Root) child).getExpressions().iterator());
+                }
+            } else {
+                if (blocks.peek() instanceof Expression.Loop) {
+                    // the back-edge is a step as well
+                    step();
+                    if (frame.tape[frame.index] != 0) {
+                        remaining.pop();
+                        remaining.push(blocks.peek().getExpressions().iterator());
+                        continue;
+                    }
+                }
+                blocks.pop();
+                remaining.pop();
+            }
+        }
+    }
+
+    /**
+     * Count a step, failing if the budget is used up.
+     */
+    private void step() {
+        if (++steps > budget) {
+            throw new BudgetExhaustedException();
+        }
+    }
+
+    private void executeLeaf(Expression expression) {
+        if (expression instanceof Expression.Move) {
+            move(((Expression.Move) expression).getDelta());
+        } else if (expression instanceof Expression.Increment) {
+            Expression.Increment increment = (Expression.Increment) expression;
+            int cell = cell(increment.getOffset());
+            frame.tape[cell] += increment.getDelta();
+        } else if (expression instanceof Expression.Set) {
+            Expression.Set set = (Expression.Set) expression;
+            int cell = cell(set.getOffset());
+            frame.tape[cell] = set.getValue();
+        } else if (expression instanceof Expression.MultiplyAdd) {
+            Expression.MultiplyAdd multiplyAdd = (Expression.MultiplyAdd) expression;
+            int source = cell(multiplyAdd.getOffset());
+            byte value = frame.tape[source];
+            for (int i = 0; i < multiplyAdd.getOffsets().length; i++) {
+                int target = cell(multiplyAdd.getOffset() + multiplyAdd.getOffsets()[i]);
+                frame.tape[target] += value * multiplyAdd.getFactors()[i];
+            }
+            // the tape may have grown to the left, which moves the source cell
+            source = cell(multiplyAdd.getOffset());
+            frame.tape[source] = 0;
+        } else if (expression instanceof Expression.Scan) {
+            int target = TapeScanner.scan(frame.tape, frame.index, ((Expression.Scan) expression).getStep());
+            move(target - frame.index);
+        } else if (expression instanceof Expression.Out) {
+            int cell = cell(((Expression.Out) expression).getOffset());
+            frame.io.write(frame.tape[cell]);
+        } else if (expression instanceof Expression.Print) {
+            byte[] data = ((Expression.Print) expression).getData();
+            frame.io.write(data, 0, data.length);
+        } else {
+            throw new AssertionError(expression);
+        }
+    }
+
+    /**
+     * Get the tape position of the cell at the given offset from the tape index, growing the tape if necessary.
+     */
+    private int cell(int offset) {
+        move(offset);
+        int cell = frame.index;
+        move(-offset);
+        return cell;
+    }
+
+    private void move(int delta) {
+        int expected = frame.index + delta;
+        frame.move(delta);
+        // growing to the left shifts all cells
+        origin += frame.index - expected;
+    }
+
+    private static final class BudgetExhaustedException extends RuntimeException {
+        BudgetExhaustedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.compile;
+
+import at.yawk.bfj.Automaton;
+import at.yawk.bfj.Engine;
+import at.yawk.bfj.ProgramIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Engine that starts running a program as a tree of {@link ClosureNode}s and counts the back-edges taken by each loop.
+ * Once a loop crosses {@link #setCompileThreshold(int) the compile threshold}, it is compiled to bytecode in the
+ * background using the {@link CompiledEngine} and the next time execution reaches the loop header, the live tape and
+ * tape index are handed over to the compiled loop.
+ *
+ * @author yawkat
+ */
+public class TieredEngine implements Engine {
+    private static final Executor DEFAULT_COMPILE_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bfj tiered compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The engine used to compile hot loops. Its optimizer is also used for the initially interpreted program.
+     */
+    @Getter private final CompiledEngine compiledEngine = new CompiledEngine();
+    @Setter private int initialBufferSize = 1024;
+    /**
+     * Number of back-edges after which a loop is queued for compilation.
+     */
+    @Setter private int compileThreshold = 10000;
+    @Setter private Executor compileExecutor = DEFAULT_COMPILE_EXECUTOR;
+
+    public Optimizer getOptimizer() {
+        return compiledEngine.getOptimizer();
+    }
+
+    @Override
+    public Automaton produce(ProgramIterator iterator) {
+        Expression expression = new ExpressionCompiler(iterator, getOptimizer()).compile();
+        ClosureNode root = expression.toClosure(
+                (loop, body) -> new TieredLoop(compiledEngine, compileExecutor, compileThreshold, loop, body));
+        return new ClosureAutomaton(root, initialBufferSize);
+    }
+
+    private static final class TieredLoop extends ClosureNode.LoopNode {
+        private final CompiledEngine compiler;
+        private final Executor compileExecutor;
+        private final int compileThreshold;
+        private final Expression.Loop expression;
+
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private volatile CompiledFragment compiled = null;
+        /**
+         * Back-edges taken so far. Not synchronized since concurrent runs only make the count less accurate.
+         */
+        private int backEdges = 0;
+
+        TieredLoop(CompiledEngine compiler, Executor compileExecutor, int compileThreshold, Expression.Loop expression,
+                   ClosureNode body) {
+            super(body);
+            this.compiler = compiler;
+            this.compileExecutor = compileExecutor;
+            this.compileThreshold = compileThreshold;
+            this.expression = expression;
+        }
+
+        @Override
+        boolean header(Frame frame) {
+            CompiledFragment compiled = this.compiled;
+            if (compiled != null) {
+                // the compiled loop starts with the header check, so it can take over at any iteration.
+                compiled.execute(frame);
+                return false;
+            }
+            return frame.tape[frame.index] != 0;
+        }
+
+        @Override
+        void backEdge() {
+            if (++backEdges >= compileThreshold && queued.compareAndSet(false, true)) {
+                compileExecutor.execute(() -> this.compiled = compiler.compileFragment(expression));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.interpret;
+
+import static at.yawk.bfj.compile.FlatProgram.*;
+
+import at.yawk.bfj.Automaton;
+import at.yawk.bfj.IO;
+import at.yawk.bfj.ParserException;
+import at.yawk.bfj.TapeScanner;
+import at.yawk.bfj.compile.FlatProgram;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Interpreter working on a {@link FlatProgram}. Unlike {@link InterpretedAutomaton} it does not need a loop stack
+ * since both loop entry and loop exit are constant-time jumps.
+ *
+ * @author yawkat
+ */
+@RequiredArgsConstructor
+final class DecodedAutomaton implements Automaton {
+    private final FlatProgram program;
+    private final boolean logProgress;
+    private final boolean detectInfiniteLoops;
+
+    @Override
+    public void execute(IO io) {
+        int[] code = program.getCode();
+        Tape tape = new Tape();
+        // every infinite loop has to pass a loop end with the same state twice, so we only capture snapshots there.
+        Set<Snapshot> visitedStates = detectInfiniteLoops ? new HashSet<>() : null;
+
+        // the tape position is kept in bounds on every move so cells can be accessed without further checks. buf and
+        // pos are local copies of the tape fields and are only written back when the tape object is needed.
+        byte[] buf = tape.buf;
+        int pos = tape.pos;
+        int pc = 0;
+        while (pc < code.length) {
+            if (logProgress) {
+                tape.pos = pos;
+                System.err.println(tape + " <- " + program.describe(pc));
+            }
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+            case OP_ADD:
+                buf[pos] += operand;
+                pc += 2;
+                break;
+            case OP_MOVE:
+                pos += operand;
+                if (pos < 0 || pos >= buf.length) {
+                    tape.pos = pos;
+                    pos = tape.growIfNecessary();
+                    buf = tape.buf;
+                }
+                pc += 2;
+                break;
+            case OP_LOOP_START:
+                pc = buf[pos] == 0 ? operand : pc + 2;
+                break;
+            case OP_LOOP_END:
+                if (buf[pos] != 0) {
+                    if (detectInfiniteLoops) {
+                        tape.pos = pos;
+                        if (!visitedStates.add(Snapshot.capture(pc, tape))) {
+                            throw new ParserException("Infinite loop at " + tape + " <- " + program.describe(pc));
+                        }
+                    }
+                    pc = operand;
+                } else {
+                    pc += 2;
+                }
+                break;
+            case OP_OUTPUT:
+                io.write(buf[pos]);
+                pc += 2;
+                break;
+            case OP_INPUT:
+                buf[pos] = io.read();
+                pc += 2;
+                break;
+            case OP_CLEAR:
+                buf[pos] = 0;
+                pc += 2;
+                break;
+            case OP_SCAN:
+                pos = TapeScanner.scan(buf, pos, operand);
+                if (pos < 0 || pos >= buf.length) {
+                    tape.pos = pos;
+                    pos = tape.growIfNecessary();
+                    buf = tape.buf;
+                }
+                pc += 2;
+                break;
+            default:
+                throw new AssertionError();
+            }
+        }
+    }
+}
@@ -23,13 +23,19 @@ final class InterpretedAutomaton implements Automaton {
 
     @Override
     public void execute(IO io) {
+        run(program.iterator(), io, logProgress, detectInfiniteLoops);
+    }
+
+    /**
+     * Interpret the instructions of the given iterator. Loops are repeated by seeking back in the iterator, and the
+     * iterator is {@link ProgramIterator#release() released} whenever the outermost loop is left.
+     */
+    static void run(ProgramIterator iterator, IO io, boolean logProgress, boolean detectInfiniteLoops) {
         int[] loopStartStack = new int[16];
         int loopDepth = 0;
         Tape tape = new Tape();
         Set<Snapshot> visitedStates = detectInfiniteLoops ? new HashSet<>() : null;
 
-        ProgramIterator iterator = program.iterator();
-
         programLoop:
         while (true) {
             Instruction instruction = iterator.next();
@@ -88,6 +94,12 @@ final class InterpretedAutomaton implements Automaton {
                 if (tape.get() != 0) {
                     // this seeks to just after the loop start instruction
                     iterator.seek(loopStartStack[loopDepth++]);
+                } else if (loopDepth == 0) {
+                    // the loop can never be revisited
+                    iterator.release();
+                    if (detectInfiniteLoops) {
+                        visitedStates.clear();
+                    }
                 }
                 break;
             case OUTPUT:
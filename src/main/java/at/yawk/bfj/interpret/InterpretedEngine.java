@@ -7,29 +7,64 @@
 package at.yawk.bfj.interpret;
 
 import at.yawk.bfj.*;
-import java.util.ArrayList;
-import java.util.List;
+import at.yawk.bfj.compile.FlatProgram;
+import at.yawk.bfj.compile.Optimizer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import lombok.Getter;
 import lombok.Setter;
 
 /**
  * @author yawkat
  */
 public class InterpretedEngine implements Engine {
+    /**
+     * Optimizer whose join and removal rules are used when fusing instructions. Its passes do not run on the flat
+     * program, so for example output of known cell values is not folded into constant prints like in compiled code.
+     */
+    @Getter private final Optimizer optimizer = new Optimizer();
     @Setter private boolean printProgress = false;
     @Setter private boolean detectInfiniteLoops = false;
+    /**
+     * Whether the program should be decoded to a flat jump table before execution. When disabled, loops are handled
+     * by seeking in the program iterator instead.
+     */
+    @Setter private boolean predecode = true;
+    /**
+     * Whether runs of increments and moves as well as clear and scan loops should be fused to single operations when
+     * predecoding. Ignored when predecoding is disabled.
+     */
+    @Setter private boolean fuse = true;
 
     @Override
     public Automaton produce(ProgramIterator iterator) {
-        return new InterpretedAutomaton(dump(iterator), printProgress, detectInfiniteLoops);
+        MemoryProgram program = MemoryProgram.read(iterator);
+        if (predecode) {
+            return new DecodedAutomaton(
+                    FlatProgram.decode(program, fuse ? optimizer : null, detectInfiniteLoops), printProgress, detectInfiniteLoops);
+        } else {
+            return new InterpretedAutomaton(program, printProgress, detectInfiniteLoops);
+        }
     }
 
-    private MemoryProgram dump(ProgramIterator iterator) {
-        List<Instruction> instructions = new ArrayList<>();
-        while (true) {
-            Instruction instruction = iterator.next();
-            if (instruction == null) { break; }
-            instructions.add(instruction);
-        }
-        return new MemoryProgram(instructions);
+    /**
+     * Read and decode a program file on the given pool, splitting it into chunks that are parsed in parallel. The
+     * file has to use a charset accepted by {@link MappedProgramIterator#supportsCharset}. The program is always
+     * predecoded, fused according to {@link #setFuse(boolean)}.
+     */
+    public Automaton produceParallel(Path path, ForkJoinPool pool) throws IOException {
+        FlatProgram program = ParallelDecoder.decode(path, fuse ? optimizer : null, detectInfiniteLoops, pool);
+        return new DecodedAutomaton(program, printProgress, detectInfiniteLoops);
+    }
+
+    /**
+     * Run the program while it is being read from the given iterator instead of reading it completely first. Only the
+     * outermost loop that is currently running is kept in memory, so this works for programs of any length as long as
+     * the iterator supports {@link ProgramIterator#release()}, like {@link BufferedProgramIterator}. Predecoding is
+     * not used in this mode.
+     */
+    public void stream(ProgramIterator iterator, IO io) {
+        InterpretedAutomaton.run(iterator, io, printProgress, detectInfiniteLoops);
     }
 }
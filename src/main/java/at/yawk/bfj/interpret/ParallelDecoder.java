@@ -0,0 +1,180 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj.interpret;
+
+import static at.yawk.bfj.compile.FlatProgram.*;
+
+import at.yawk.bfj.Instruction;
+import at.yawk.bfj.ParserException;
+import at.yawk.bfj.compile.FlatProgram;
+import at.yawk.bfj.compile.FlatProgram.Decoder;
+import at.yawk.bfj.compile.Optimizer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes a program file to a {@link FlatProgram} on multiple threads.
+ *
+ * <ol>
+ * <li>The file is split into chunks that are mapped, filtered and decoded in parallel. Loops inside a chunk are
+ * matched and fused like in {@link FlatProgram#decode}. Every chunk reports the loop starts and loop ends it could
+ * not match.</li>
+ * <li>Prefix sums over the chunks give the code offset and the loop depth at the start of each chunk.</li>
+ * <li>The chunks are copied to their offsets in parallel.</li>
+ * <li>The unmatched loop brackets are matched across chunks. Only these are visited here, so this step is
+ * proportional to the number of chunks times the loop depth at the chunk borders, not to the program size.</li>
+ * </ol>
+ *
+ * Runs of instructions and loops that span a chunk border are not fused, so the result can be slightly larger than the
+ * sequentially decoded program. The file has to use a charset accepted by
+ * {@link at.yawk.bfj.MappedProgramIterator#supportsCharset}.
+ *
+ * @author yawkat
+ */
+final class ParallelDecoder {
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    private static final long MAX_CHUNK_SIZE = 1 << 26;
+    /**
+     * Chunks per pool thread, so threads that finish early can pick up more work.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelDecoder() {}
+
+    /**
+     * @param keepEmptyLoops see {@link Decoder#setKeepEmptyLoops(boolean)}.
+     */
+    static FlatProgram decode(Path path, @Nullable Optimizer optimizer, boolean keepEmptyLoops, ForkJoinPool pool)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return decode(channel, optimizer, keepEmptyLoops, pool);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static FlatProgram decode(FileChannel channel, @Nullable Optimizer optimizer, boolean keepEmptyLoops,
+                                      ForkJoinPool pool) throws IOException {
+        long size = channel.size();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(
+                MAX_CHUNK_SIZE, size / ((long) pool.getParallelism() * CHUNKS_PER_THREAD) + 1));
+        int chunkCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+        List<ForkJoinTask<Decoder>> decodeTasks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            long start = i * chunkSize;
+            long length = Math.min(chunkSize, size - start);
+            decodeTasks.add(pool.submit(() -> decodeChunk(channel, start, length, optimizer, keepEmptyLoops)));
+        }
+        Decoder[] chunks = new Decoder[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = decodeTasks.get(i).join();
+        }
+
+        // offsets[i] is the code index at which chunk i starts, depths[i] the loop depth before chunk i
+        long[] offsets = new long[chunkCount + 1];
+        int[] depths = new int[chunkCount + 1];
+        for (int i = 0; i < chunkCount; i++) {
+            offsets[i + 1] = chunks[i].length();
+            depths[i + 1] = chunks[i].getLoopDepth() - chunks[i].getUnmatchedEndCount();
+        }
+        Arrays.parallelPrefix(offsets, Long::sum);
+        Arrays.parallelPrefix(depths, Integer::sum);
+        if (offsets[chunkCount] > Integer.MAX_VALUE - 8) {
+            throw new ParserException("Program too large");
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            // the unmatched loop ends of a chunk close loops that were opened before it
+            if (chunks[i].getUnmatchedEndCount() > depths[i]) {
+                throw new ParserException("Missing loop start for loop end instruction");
+            }
+        }
+
+        int[] code = new int[(int) offsets[chunkCount]];
+        List<ForkJoinTask<?>> copyTasks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            Decoder chunk = chunks[i];
+            int offset = (int) offsets[i];
+            copyTasks.add(pool.submit(() -> relocate(chunk, code, offset)));
+        }
+        for (ForkJoinTask<?> task : copyTasks) {
+            task.join();
+        }
+
+        // match loop brackets across chunks. the stack holds the absolute code indices of open loop starts.
+        int[] loopStartStack = new int[16];
+        int loopDepth = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            Decoder chunk = chunks[i];
+            int offset = (int) offsets[i];
+            for (int j = 0; j < chunk.getUnmatchedEndCount(); j++) {
+                int end = offset + chunk.unmatchedEnd(j);
+                int start = loopStartStack[--loopDepth];
+                code[end + 1] = start + 2;
+                code[start + 1] = end + 2;
+            }
+            if (loopDepth + chunk.getLoopDepth() > loopStartStack.length) {
+                loopStartStack = Arrays.copyOf(loopStartStack, (loopDepth + chunk.getLoopDepth()) * 2);
+            }
+            for (int j = 0; j < chunk.getLoopDepth(); j++) {
+                loopStartStack[loopDepth++] = offset + chunk.openLoopStart(j);
+            }
+        }
+        // unclosed loops behave as if the program ended inside them
+        for (int i = 0; i < loopDepth; i++) {
+            code[loopStartStack[i] + 1] = code.length;
+        }
+        return new FlatProgram(code);
+    }
+
+    private static Decoder decodeChunk(FileChannel channel, long start, long length, @Nullable Optimizer optimizer,
+                                       boolean keepEmptyLoops) {
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // fused runs usually take much less space than their source, the decoder grows if they don't
+        Decoder decoder = new Decoder(optimizer, (int) (length / 4), true);
+        decoder.setKeepEmptyLoops(keepEmptyLoops);
+        int limit = buffer.limit();
+        for (int i = 0; i < limit; i++) {
+            Instruction instruction = Instruction.forByte(buffer.get(i));
+            if (instruction != null) {
+                decoder.add(instruction);
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Copy the code of a chunk to the given offset, moving the targets of the loops that were matched inside the chunk
+     * along with it.
+     */
+    private static void relocate(Decoder chunk, int[] code, int offset) {
+        int[] chunkCode = chunk.code();
+        for (int pc = 0; pc < chunk.length(); pc += 2) {
+            int op = chunkCode[pc];
+            int operand = chunkCode[pc + 1];
+            code[offset + pc] = op;
+            code[offset + pc + 1] = op == OP_LOOP_START || op == OP_LOOP_END ? operand + offset : operand;
+        }
+        // only the loop stack and the unmatched loop ends are needed from here on
+        chunk.releaseCode();
+    }
+}
@@ -22,7 +22,7 @@ final class Tape {
         buf[pos] = b;
     }
 
-    private int growIfNecessary() {
+    int growIfNecessary() {
         while (isOutOfBounds()) {
             byte[] newBuf = new byte[buf.length << 1];
             if (pos < 0) {
@@ -0,0 +1,84 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import at.yawk.bfj.compile.ClosureEngine;
+import at.yawk.bfj.compile.CompiledEngine;
+import at.yawk.bfj.compile.TieredEngine;
+import at.yawk.bfj.interpret.InterpretedEngine;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Runs programs whose loops are nested much deeper than a thread stack could hold if parsing, optimizing or code
+ * generation recursed once per nesting level.
+ *
+ * @author yawkat
+ */
+public class DeepNestingTest {
+    private static final int DEPTH = 20000;
+
+    /**
+     * A program that reads one byte per nesting level on the way in and out, so it can't be evaluated at compile
+     * time. It echoes the innermost byte followed by a newline.
+     */
+    private static final String PROGRAM = "," + repeat("[>,", DEPTH) + ".[-]" + repeat("<,]", DEPTH) + "++++++++++.";
+
+    private static byte[] input() {
+        byte[] input = new byte[DEPTH * 2 + 1];
+        // the bytes read on the way in are nonzero, the bytes read on the way out end each loop
+        Arrays.fill(input, 0, DEPTH + 1, (byte) 'x');
+        return input;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private static void check(Engine engine) {
+        Automaton automaton = engine.produce(new ReaderProgramIterator(new StringReader(PROGRAM)));
+        MemoryIO io = new MemoryIO(input());
+        automaton.execute(io);
+        assertArrayEquals("x\n".getBytes(StandardCharsets.US_ASCII), io.toByteArray());
+    }
+
+    @Test
+    public void interpreted() {
+        check(new InterpretedEngine());
+    }
+
+    @Test
+    public void compiled() {
+        check(new CompiledEngine());
+    }
+
+    @Test
+    public void closure() {
+        check(new ClosureEngine());
+    }
+
+    @Test
+    public void tiered() {
+        check(new TieredEngine());
+    }
+
+    @Test
+    public void optimizedProgram() {
+        MemoryProgram optimized = new CompiledEngine().optimize(new ReaderProgramIterator(new StringReader(PROGRAM)));
+        MemoryIO io = new MemoryIO(input());
+        new InterpretedEngine().produce(optimized.iterator()).execute(io);
+        assertArrayEquals("x\n".getBytes(StandardCharsets.US_ASCII), io.toByteArray());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import at.yawk.bfj.interpret.InterpretedEngine;
+import java.io.EOFException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * @author yawkat
+ */
+public class PipelineTest {
+    /**
+     * Prints <code>A</code>.
+     */
+    private static final String PRINT_A = "++++++++[>++++++++<-]>+.";
+
+    private static Pipeline pipeline(String... programs) {
+        List<Automaton> stages = new ArrayList<>();
+        for (String program : programs) {
+            stages.add(new InterpretedEngine().produce(new ReaderProgramIterator(new StringReader(program))));
+        }
+        return new Pipeline(stages);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test(timeout = 10000)
+    public void passesOutputToNextStage() {
+        MemoryIO output = new MemoryIO();
+        pipeline(",+.,+.", ",+.,+.", ",.,.").run(new MemoryIO(ascii("AB")), output);
+        assertArrayEquals(ascii("CD"), output.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void stopsPreviousStageWhenStageEnds() {
+        MemoryIO output = new MemoryIO();
+        // the first stage prints forever
+        pipeline(PRINT_A + "[.]", ",.").run(new MemoryIO(), output);
+        assertArrayEquals(ascii("A"), output.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void keepsOutputOfFailingStage() {
+        FlushedIO output = new FlushedIO();
+        try {
+            // the last stage echoes the first byte and fails reading a second one
+            pipeline(PRINT_A, ",.,.").run(new MemoryIO(), output);
+            fail("Expected end of input");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+        assertArrayEquals(ascii("A"), output.flushed.toByteArray());
+    }
+
+    /**
+     * Output that only keeps the bytes that were flushed, like a buffered stream that is never closed.
+     */
+    private static final class FlushedIO implements IO {
+        private final MemoryIO pending = new MemoryIO();
+        private final MemoryIO flushed = new MemoryIO();
+
+        @Override
+        public byte read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void read(byte[] buffer, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte value) {
+            pending.write(value);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            pending.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            byte[] bytes = pending.toByteArray();
+            flushed.write(bytes, 0, bytes.length);
+            pending.reset(new byte[0]);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package at.yawk.bfj;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+/**
+ * @author yawkat
+ */
+public class RingBufferTest {
+    @Test(timeout = 10000)
+    public void transfersBytesInOrder() throws InterruptedException {
+        byte[] data = new byte[1 << 20];
+        new Random(0).nextBytes(data);
+        // much smaller than the data so both sides have to wait for each other
+        RingBuffer buffer = new RingBuffer(64);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                int i = 0;
+                while (i < data.length) {
+                    // alternate between single and bulk writes of varying length
+                    int length = Math.min(i % 97, data.length - i);
+                    if (length == 0) {
+                        buffer.write(data[i++]);
+                    } else {
+                        buffer.write(data, i, length);
+                        i += length;
+                    }
+                }
+                buffer.closeWrite();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        producer.start();
+
+        byte[] received = new byte[data.length];
+        int i = 0;
+        while (i < received.length) {
+            int length = Math.min(i % 89, received.length - i);
+            if (length == 0) {
+                received[i++] = buffer.read();
+            } else {
+                buffer.read(received, i, length);
+                i += length;
+            }
+        }
+        producer.join();
+        assertEquals(null, failure.get());
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void readFailsAtEndOfInput() {
+        RingBuffer buffer = new RingBuffer(16);
+        buffer.write((byte) 1);
+        buffer.write((byte) 2);
+        buffer.closeWrite();
+        assertEquals(1, buffer.read());
+        assertEquals(2, buffer.read());
+        try {
+            buffer.read();
+            fail("Expected end of input");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void writeFailsOnceReadIsClosed() {
+        RingBuffer buffer = new RingBuffer(16);
+        buffer.closeRead();
+        try {
+            // more than fits into the buffer, so the writer has to wait for the reader
+            for (int i = 0; i < 17; i++) {
+                buffer.write((byte) i);
+            }
+            fail("Expected closed buffer");
+        } catch (RingBuffer.ClosedException expected) {
+        }
+    }
+}